@@ -1,5 +1,17 @@
 // DesignPatterns.java
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
+
 // Assignment 1: Adapter Pattern - Audio Player
 
 interface AudioPlayer {
@@ -26,9 +38,27 @@ interface AACPlayer {
 }
 
 class AdvancedAudioPlayer implements WAVPlayer, AACPlayer {
+    private final PcmSink sink;
+
+    public AdvancedAudioPlayer() {
+        this(PcmSink.DISCARD);
+    }
+
+    public AdvancedAudioPlayer(PcmSink sink) {
+        this.sink = sink;
+    }
+
     @Override
     public void playWAV(String fileName) {
         System.out.println("Playing WAV file: " + fileName);
+        Path file = Paths.get(fileName);
+        if (Files.isRegularFile(file)) {
+            try {
+                new WavStream(file, sink).play();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot play " + fileName, e);
+            }
+        }
     }
 
     @Override
@@ -37,19 +67,326 @@ class AdvancedAudioPlayer implements WAVPlayer, AACPlayer {
     }
 }
 
+interface AudioCodec {
+    void play(String fileName);
+}
+
+// Maps format names to codecs, ignoring case. Lookups hash the name in place and compare with
+// equalsIgnoreCase, so resolving a format allocates nothing; registration copies the table,
+// so readers never lock and adding formats does not lengthen other formats' probe paths.
+class AudioFormatRegistry {
+    private static final class Table {
+        final String[] formats;
+        final AudioCodec[] codecs;
+        final int count;
+
+        Table(int capacity, int count) {
+            formats = new String[capacity];
+            codecs = new AudioCodec[capacity];
+            this.count = count;
+        }
+    }
+
+    public static final AudioFormatRegistry ADVANCED_FORMATS = new AudioFormatRegistry();
+
+    static {
+        AdvancedAudioPlayer player = new AdvancedAudioPlayer();
+        ADVANCED_FORMATS.register("wav", player::playWAV);
+        ADVANCED_FORMATS.register("aac", player::playAAC);
+    }
+
+    private volatile Table table = new Table(8, 0);
+
+    public synchronized void register(String format, AudioCodec codec) {
+        Table current = table;
+        int count = resolve(format) == null ? current.count + 1 : current.count;
+        int capacity = current.formats.length;
+        while (count * 2 > capacity) {
+            capacity *= 2;
+        }
+        Table next = new Table(capacity, count);
+        for (int i = 0; i < current.formats.length; i++) {
+            if (current.formats[i] != null && !current.formats[i].equalsIgnoreCase(format)) {
+                insert(next, current.formats[i], current.codecs[i]);
+            }
+        }
+        insert(next, format, codec);
+        table = next;
+    }
+
+    public AudioCodec resolve(String format) {
+        if (format == null) {
+            return null;
+        }
+        Table current = table;
+        int mask = current.formats.length - 1;
+        for (int slot = hash(format) & mask; current.formats[slot] != null; slot = (slot + 1) & mask) {
+            if (current.formats[slot].equalsIgnoreCase(format)) {
+                return current.codecs[slot];
+            }
+        }
+        return null;
+    }
+
+    private static void insert(Table table, String format, AudioCodec codec) {
+        int mask = table.formats.length - 1;
+        int slot = hash(format) & mask;
+        while (table.formats[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        table.formats[slot] = format;
+        table.codecs[slot] = codec;
+    }
+
+    // Folds case the same way equalsIgnoreCase compares characters.
+    private static int hash(String format) {
+        int hash = 0;
+        for (int i = 0; i < format.length(); i++) {
+            hash = 31 * hash + java.lang.Character.toLowerCase(java.lang.Character.toUpperCase(format.charAt(i)));
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
+
+interface PcmSink {
+    PcmSink DISCARD = frames -> frames.position(frames.limit());
+
+    // Consumes whole frames between position and limit.
+    void write(ByteBuffer frames) throws IOException;
+}
+
+class FilePcmSink implements PcmSink, Closeable {
+    private final FileChannel channel;
+
+    public FilePcmSink(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void write(ByteBuffer frames) throws IOException {
+        while (frames.hasRemaining()) {
+            channel.write(frames);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// Streams the PCM data of a WAV file to a sink through one fixed direct buffer that is refilled
+// from the FileChannel and handed over a whole number of frames at a time. Nothing is allocated
+// per chunk, so many streams can run side by side without creating garbage.
+class WavStream {
+    static final int DEFAULT_BUFFER_BYTES = 64 << 10;
+
+    private final Path file;
+    private final PcmSink sink;
+    private final int bufferBytes;
+    private int channels;
+    private int sampleRate;
+    private int bitsPerSample;
+    private int blockAlign;
+    private long dataOffset;
+    private long dataLength;
+    private volatile long bytesStreamed;
+    private volatile long chunksWritten;
+    private volatile long elapsedNanos;
+    private volatile long sinkNanos;
+    private volatile long maxSinkNanos;
+
+    public WavStream(Path file, PcmSink sink) {
+        this(file, sink, DEFAULT_BUFFER_BYTES);
+    }
+
+    public WavStream(Path file, PcmSink sink, int bufferBytes) {
+        this.file = file;
+        this.sink = sink;
+        this.bufferBytes = bufferBytes;
+    }
+
+    public void play() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            readHeader(channel);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(blockAlign, bufferBytes / blockAlign * blockAlign));
+            long position = dataOffset;
+            long end = dataOffset + dataLength;
+            long start = System.nanoTime();
+            while (position < end || buffer.position() >= blockAlign) {
+                if (position < end) {
+                    buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + end - position));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        end = position;
+                    } else {
+                        position += read;
+                    }
+                }
+                buffer.flip();
+                int remainder = buffer.remaining() % blockAlign;
+                buffer.limit(buffer.limit() - remainder);
+                int frames = buffer.remaining();
+                long writeStart = System.nanoTime();
+                sink.write(buffer);
+                long writeNanos = System.nanoTime() - writeStart;
+                buffer.limit(buffer.limit() + remainder);
+                buffer.compact();
+                bytesStreamed += frames;
+                chunksWritten++;
+                sinkNanos += writeNanos;
+                maxSinkNanos = Math.max(maxSinkNanos, writeNanos);
+                elapsedNanos = System.nanoTime() - start;
+            }
+        }
+    }
+
+    private void readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header.limit(12), 0);
+        if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) {
+            throw new IOException(file + " is not a RIFF/WAVE file");
+        }
+        boolean format = false;
+        for (long position = 12; position + 8 <= channel.size(); ) {
+            readFully(channel, header.clear().limit(8), position);
+            int id = header.getInt(0);
+            long size = Integer.toUnsignedLong(header.getInt(4));
+            position += 8;
+            if (id == 0x20746d66) {
+                readFully(channel, header.clear().limit(16), position);
+                int encoding = header.getShort(0) & 0xFFFF;
+                if (encoding != 1 && encoding != 0xFFFE) {
+                    throw new IOException(file + " is not PCM encoded (format " + encoding + ")");
+                }
+                channels = header.getShort(2) & 0xFFFF;
+                sampleRate = header.getInt(4);
+                blockAlign = header.getShort(12) & 0xFFFF;
+                bitsPerSample = header.getShort(14) & 0xFFFF;
+                format = blockAlign > 0;
+            } else if (id == 0x61746164) {
+                if (!format) {
+                    throw new IOException(file + " has no fmt chunk before its data");
+                }
+                dataOffset = position;
+                dataLength = Math.min(size, channel.size() - position);
+                return;
+            }
+            position += size + (size & 1);
+        }
+        throw new IOException(file + " has no data chunk");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    public int getChannels() { return channels; }
+    public int getSampleRate() { return sampleRate; }
+    public int getBitsPerSample() { return bitsPerSample; }
+    public long getBytesStreamed() { return bytesStreamed; }
+    public long getChunksWritten() { return chunksWritten; }
+
+    public double getThroughputBytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : bytesStreamed * 1e9 / elapsedNanos;
+    }
+
+    public double getAverageSinkLatencyMicros() {
+        return chunksWritten == 0 ? 0 : sinkNanos / 1e3 / chunksWritten;
+    }
+
+    public double getMaxSinkLatencyMicros() {
+        return maxSinkNanos / 1e3;
+    }
+}
+
+class WavStreamBenchmark {
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int streams = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Path file = Files.createTempFile("stream", ".wav");
+        try {
+            writeWav(file, (long) megabytes << 20);
+            WavStream[] players = new WavStream[streams];
+            Thread[] threads = new Thread[streams];
+            for (int i = 0; i < streams; i++) {
+                WavStream player = players[i] = new WavStream(file, PcmSink.DISCARD);
+                threads[i] = new Thread(() -> {
+                    try {
+                        player.play();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long total = 0;
+            for (WavStream player : players) {
+                total += player.getBytesStreamed();
+                System.out.printf("Stream: %.0f MB/s, sink latency avg %.1f us, max %.1f us%n",
+                        player.getThroughputBytesPerSecond() / (1 << 20), player.getAverageSinkLatencyMicros(), player.getMaxSinkLatencyMicros());
+            }
+            System.out.printf("%d streams: %.0f MB/s aggregate%n", streams, total / seconds / (1 << 20));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // 16-bit stereo 44.1 kHz PCM filled with a square wave.
+    private static void writeWav(Path file, long dataBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0x46464952).putInt((int) (36 + dataBytes)).putInt(0x45564157)
+                    .putInt(0x20746d66).putInt(16).putShort((short) 1).putShort((short) 2)
+                    .putInt(44_100).putInt(44_100 * 4).putShort((short) 4).putShort((short) 16)
+                    .putInt(0x61746164).putInt((int) dataBytes).flip();
+            channel.write(header);
+            ByteBuffer block = ByteBuffer.allocateDirect(1 << 20);
+            while (block.hasRemaining()) {
+                block.put((byte) (block.position() % 200 < 100 ? 0x40 : 0xC0));
+            }
+            for (long written = 0; written < dataBytes; ) {
+                block.clear().limit((int) Math.min(block.capacity(), dataBytes - written));
+                written += channel.write(block);
+            }
+        }
+    }
+}
+
 class AudioAdapter implements AudioPlayer {
-    private AdvancedAudioPlayer advancedAudioPlayer;
+    private static final AudioAdapter SHARED = new AudioAdapter(AudioFormatRegistry.ADVANCED_FORMATS);
 
+    private final AudioFormatRegistry registry;
+
+    // The format is resolved per call, so every adapter over the same registry behaves alike.
     public AudioAdapter(String audioType) {
-        advancedAudioPlayer = new AdvancedAudioPlayer();
+        this(AudioFormatRegistry.ADVANCED_FORMATS);
+    }
+
+    public AudioAdapter(AudioFormatRegistry registry) {
+        this.registry = registry;
+    }
+
+    public static AudioAdapter shared() {
+        return SHARED;
     }
 
     @Override
     public void play(String audioType, String fileName) {
-        if ("wav".equalsIgnoreCase(audioType)) {
-            advancedAudioPlayer.playWAV(fileName);
-        } else if ("aac".equalsIgnoreCase(audioType)) {
-            advancedAudioPlayer.playAAC(fileName);
+        AudioCodec codec = registry.resolve(audioType);
+        if (codec != null) {
+            codec.play(fileName);
         } else {
             System.out.println("Invalid audio type: " + audioType);
         }
@@ -61,11 +398,9 @@ public class MusicPlayerApp {
         AudioPlayer player = new MP3Player();
         player.play("mp3", "song.mp3");
 
-        AudioPlayer adapter = new AudioAdapter("wav");
+        AudioPlayer adapter = AudioAdapter.shared();
         adapter.play("wav", "song.wav");
-
-        adapter = new AudioAdapter("aac");
-        adapter.play("aac", "song.aac");
+        adapter.play("AAC", "song.aac");
     }
 }
 
@@ -131,6 +466,10 @@ abstract class RemoteControl {
 
     public abstract void power();
     public abstract void setChannel(int channel);
+
+    public void setVolume(int volume) {
+        device.setVolume(volume);
+    }
 }
 
 class BasicRemote extends RemoteControl {
@@ -169,6 +508,238 @@ class AdvancedRemote extends RemoteControl {
     }
 }
 
+// Buffers commands for one device between flushes. Within each stretch between power commands,
+// only the latest volume and the latest channel are kept; power commands are queued in order and
+// act as barriers, so a volume set before powerOff is never delivered after it.
+class CoalescingDevice implements Device {
+    private static final int POWER_ON = 0;
+    private static final int POWER_OFF = 1;
+    private static final int CHANNEL = 2;
+    private static final int VOLUME = 3;
+
+    private final Device device;
+    private final DeviceCommandPipeline pipeline;
+    private final Object flushLock = new Object();
+    private int[] kinds = new int[8];
+    private int[] values = new int[8];
+    private int[] drainingKinds = new int[8];
+    private int[] drainingValues = new int[8];
+    private int pending;
+    private int channelIndex = -1;
+    private int volumeIndex = -1;
+
+    CoalescingDevice(Device device, DeviceCommandPipeline pipeline) {
+        this.device = device;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public void powerOn() {
+        enqueue(POWER_ON, 0);
+    }
+
+    @Override
+    public void powerOff() {
+        enqueue(POWER_OFF, 0);
+    }
+
+    @Override
+    public void setChannel(int channel) {
+        enqueue(CHANNEL, channel);
+    }
+
+    @Override
+    public void setVolume(int volume) {
+        enqueue(VOLUME, volume);
+    }
+
+    // Delivers everything queued so far; flushes of one device never overlap. The draining pair is
+    // only touched here, under flushLock, so enqueue can grow the filling pair mid-delivery.
+    public void flush() {
+        synchronized (flushLock) {
+            int count;
+            int[] commandKinds;
+            int[] commandValues;
+            synchronized (this) {
+                count = pending;
+                int[] swap = kinds;
+                kinds = drainingKinds;
+                drainingKinds = swap;
+                swap = values;
+                values = drainingValues;
+                drainingValues = swap;
+                pending = 0;
+                channelIndex = -1;
+                volumeIndex = -1;
+                commandKinds = drainingKinds;
+                commandValues = drainingValues;
+            }
+            for (int i = 0; i < count; i++) {
+                switch (commandKinds[i]) {
+                    case POWER_ON -> device.powerOn();
+                    case POWER_OFF -> device.powerOff();
+                    case CHANNEL -> device.setChannel(commandValues[i]);
+                    default -> device.setVolume(commandValues[i]);
+                }
+            }
+        }
+    }
+
+    private void enqueue(int kind, int value) {
+        boolean full;
+        synchronized (this) {
+            int coalesced = kind == CHANNEL ? channelIndex : kind == VOLUME ? volumeIndex : -1;
+            if (coalesced >= 0) {
+                values[coalesced] = value;
+                return;
+            }
+            if (pending == kinds.length) {
+                kinds = Arrays.copyOf(kinds, pending * 2);
+                values = Arrays.copyOf(values, pending * 2);
+            }
+            kinds[pending] = kind;
+            values[pending] = value;
+            if (kind == CHANNEL) {
+                channelIndex = pending;
+            } else if (kind == VOLUME) {
+                volumeIndex = pending;
+            } else {
+                channelIndex = -1;
+                volumeIndex = -1;
+            }
+            full = ++pending == pipeline.getMaxBatch();
+        }
+        if (full) {
+            pipeline.requestFlush(this);
+        }
+    }
+}
+
+// Sits between remotes and devices: wrap each device once, hand the wrapper to the remote, and
+// commands reach the real device in coalesced batches every flush interval or once a device has
+// maxBatch commands waiting, whichever comes first.
+class DeviceCommandPipeline implements AutoCloseable {
+    private final List<CoalescingDevice> devices = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final int maxBatch;
+
+    public DeviceCommandPipeline(long flushIntervalMillis, int maxBatch) {
+        this.maxBatch = maxBatch;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "device-command-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public Device buffer(Device device) {
+        CoalescingDevice buffered = new CoalescingDevice(device, this);
+        devices.add(buffered);
+        return buffered;
+    }
+
+    public void flush() {
+        for (CoalescingDevice device : devices) {
+            device.flush();
+        }
+    }
+
+    int getMaxBatch() {
+        return maxBatch;
+    }
+
+    void requestFlush(CoalescingDevice device) {
+        scheduler.execute(device::flush);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
+
+// Stand-in for a real device that takes latencyMicros to apply each command.
+class SimulatedDevice implements Device {
+    private final long latencyMicros;
+    private final AtomicLong commands = new AtomicLong();
+    private volatile boolean on;
+    private volatile int channel;
+    private volatile int volume;
+
+    public SimulatedDevice(long latencyMicros) {
+        this.latencyMicros = latencyMicros;
+    }
+
+    @Override
+    public void powerOn() { apply(); on = true; }
+    @Override
+    public void powerOff() { apply(); on = false; }
+    @Override
+    public void setChannel(int channel) { apply(); this.channel = channel; }
+    @Override
+    public void setVolume(int volume) { apply(); this.volume = volume; }
+
+    public boolean isOn() { return on; }
+    public int getChannel() { return channel; }
+    public int getVolume() { return volume; }
+    public long getCommands() { return commands.get(); }
+
+    private void apply() {
+        commands.incrementAndGet();
+        LockSupport.parkNanos(latencyMicros * 1000);
+    }
+}
+
+class RemotePipelineBenchmark {
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        long latencyMicros = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        SimulatedDevice[] direct = new SimulatedDevice[devices];
+        long start = System.nanoTime();
+        for (int d = 0; d < devices; d++) {
+            direct[d] = new SimulatedDevice(latencyMicros);
+            slide(new BasicRemote(direct[d]), changes);
+        }
+        report("Direct", direct, System.nanoTime() - start);
+
+        SimulatedDevice[] buffered = new SimulatedDevice[devices];
+        start = System.nanoTime();
+        try (DeviceCommandPipeline pipeline = new DeviceCommandPipeline(20, 64)) {
+            for (int d = 0; d < devices; d++) {
+                buffered[d] = new SimulatedDevice(latencyMicros);
+                slide(new BasicRemote(pipeline.buffer(buffered[d])), changes);
+            }
+        }
+        report("Pipelined", buffered, System.nanoTime() - start);
+    }
+
+    private static void slide(RemoteControl remote, int changes) {
+        remote.power();
+        for (int i = 0; i < changes; i++) {
+            remote.setVolume(i % 100);
+        }
+        remote.setChannel(7);
+    }
+
+    private static void report(String mode, SimulatedDevice[] devices, long nanos) {
+        long commands = 0;
+        for (SimulatedDevice device : devices) {
+            commands += device.getCommands();
+        }
+        System.out.printf("%s: %d device calls in %.0f ms, final volume %d, channel %d%n",
+                mode, commands, nanos / 1e6, devices[0].getVolume(), devices[0].getChannel());
+    }
+}
+
 class HomeEntertainmentSystem {
     public static void main(String[] args) {
         Device tv = new TVDevice();
@@ -187,10 +758,97 @@ class HomeEntertainmentSystem {
 // Assignment 3: Composite Pattern - Menu System
 
 abstract class MenuComponent {
+    protected Menu parent;
+
     public String getName() { return ""; }
     public String getDescription() { return ""; }
     public double getPrice() { return 0; }
-    public void print() {}
+    public void add(MenuComponent menuComponent) { throw new UnsupportedOperationException(); }
+    public void remove(MenuComponent menuComponent) { throw new UnsupportedOperationException(); }
+    public int getItemCount() { return 0; }
+    public double getTotalPrice() { return 0; }
+    public double getMinPrice() { return Double.POSITIVE_INFINITY; }
+    public double getMaxPrice() { return Double.NEGATIVE_INFINITY; }
+    public List<MenuComponent> getChildren() { return Collections.emptyList(); }
+
+    public void print() {
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            print(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void print(Writer out) throws IOException {
+        for (Iterator<MenuComponent> components = iterator(); components.hasNext(); ) {
+            components.next().printLine(out);
+        }
+    }
+
+    // Renders each direct child's subtree on the common pool and writes the results in order.
+    // Lazily loaded catalogs are not thread-safe, so this is for in-memory trees only.
+    public void print(Writer out, boolean parallel) throws IOException {
+        if (!parallel) {
+            print(out);
+            return;
+        }
+        printLine(out);
+        List<String> rendered = getChildren().parallelStream().map(child -> {
+            StringWriter buffer = new StringWriter();
+            try {
+                child.print(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return buffer.toString();
+        }).toList();
+        for (String subtree : rendered) {
+            out.write(subtree);
+        }
+    }
+
+    // Pre-order walk with an explicit stack, so deep menus cannot overflow the call stack.
+    public Iterator<MenuComponent> iterator() {
+        return new Iterator<>() {
+            private final Deque<Iterator<MenuComponent>> pending = new ArrayDeque<>();
+            private MenuComponent next = MenuComponent.this;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && !pending.isEmpty()) {
+                    Iterator<MenuComponent> siblings = pending.peek();
+                    if (siblings.hasNext()) {
+                        next = siblings.next();
+                    } else {
+                        pending.pop();
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public MenuComponent next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                MenuComponent current = next;
+                next = null;
+                List<MenuComponent> children = current.getChildren();
+                if (!children.isEmpty()) {
+                    pending.push(children.iterator());
+                }
+                return current;
+            }
+        };
+    }
+
+    public Stream<MenuComponent> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    protected void printLine(Writer out) throws IOException {}
 }
 
 class MenuItem extends MenuComponent {
@@ -211,295 +869,2248 @@ class MenuItem extends MenuComponent {
     @Override
     public double getPrice() { return price; }
     @Override
-    public void print() {
-        System.out.println(getName() + ": " + getDescription() + ", Price: " + getPrice());
+    public int getItemCount() { return 1; }
+    @Override
+    public double getTotalPrice() { return price; }
+    @Override
+    public double getMinPrice() { return price; }
+    @Override
+    public double getMaxPrice() { return price; }
+    @Override
+    protected void printLine(Writer out) throws IOException {
+        out.write(getName());
+        out.write(": ");
+        out.write(getDescription());
+        out.write(", Price: ");
+        out.write(Double.toString(getPrice()));
+        out.write(System.lineSeparator());
     }
 }
 
+// Each menu caches the item count and price aggregates of its subtree; add and remove update
+// them along the path to the root, so catalog-wide totals are field reads.
 class Menu extends MenuComponent {
     private List<MenuComponent> menuComponents = new ArrayList<>();
     private String name;
     private String description;
+    private int itemCount;
+    private double totalPrice;
+    private double minPrice = Double.POSITIVE_INFINITY;
+    private double maxPrice = Double.NEGATIVE_INFINITY;
+    private MenuIndex index;
 
     public Menu(String name, String description) {
         this.name = name;
         this.description = description;
     }
 
+    // For menus whose children live elsewhere until visited: aggregates are known up front.
+    protected Menu(String name, String description, int itemCount, double totalPrice, double minPrice, double maxPrice) {
+        this(name, description);
+        this.itemCount = itemCount;
+        this.totalPrice = totalPrice;
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+    }
+
+    protected List<MenuComponent> children() {
+        return menuComponents;
+    }
+
+    // Attaches already-counted children without touching the aggregates or indexes above.
+    protected void attachLoaded(List<MenuComponent> loaded) {
+        for (MenuComponent menuComponent : loaded) {
+            menuComponent.parent = this;
+        }
+        menuComponents = loaded;
+    }
+
+    protected void detachLoaded() {
+        for (MenuComponent menuComponent : menuComponents) {
+            menuComponent.parent = null;
+        }
+        menuComponents = new ArrayList<>();
+    }
+
+    @Override
     public void add(MenuComponent menuComponent) {
-        menuComponents.add(menuComponent);
+        if (menuComponent.parent != null) {
+            throw new IllegalArgumentException(menuComponent.getName() + " already belongs to " + menuComponent.parent.getName());
+        }
+        for (Menu menu = this; menu != null; menu = menu.parent) {
+            if (menu == menuComponent) {
+                throw new IllegalArgumentException("Cannot add " + getName() + " to itself");
+            }
+        }
+        children().add(menuComponent);
+        menuComponent.parent = this;
+        for (Menu menu = this; menu != null; menu = menu.parent) {
+            menu.itemCount += menuComponent.getItemCount();
+            menu.totalPrice += menuComponent.getTotalPrice();
+            menu.minPrice = Math.min(menu.minPrice, menuComponent.getMinPrice());
+            menu.maxPrice = Math.max(menu.maxPrice, menuComponent.getMaxPrice());
+            if (menu.index != null) {
+                menu.index.add(menuComponent);
+            }
+        }
     }
 
+    @Override
     public void remove(MenuComponent menuComponent) {
-        menuComponents.remove(menuComponent);
+        if (menuComponent.parent != this || !children().remove(menuComponent)) {
+            return;
+        }
+        menuComponent.parent = null;
+        for (Menu menu = this; menu != null; menu = menu.parent) {
+            menu.itemCount -= menuComponent.getItemCount();
+            menu.totalPrice = menu.itemCount == 0 ? 0 : menu.totalPrice - menuComponent.getTotalPrice();
+            if (menuComponent.getMinPrice() <= menu.minPrice || menuComponent.getMaxPrice() >= menu.maxPrice) {
+                menu.recomputeExtremes();
+            }
+            if (menu.index != null) {
+                menu.index.remove(menuComponent);
+            }
+        }
+    }
+
+    // Indexes every item below this menu and keeps the index in sync with later adds and removes.
+    public MenuIndex createIndex() {
+        if (index == null) {
+            index = new MenuIndex();
+            for (MenuComponent menuComponent : children()) {
+                index.add(menuComponent);
+            }
+        }
+        return index;
     }
 
+    public MenuIndex getIndex() { return index; }
+
     @Override
-    public void print() {
-        System.out.println(getName() + ": " + getDescription());
-        for (MenuComponent menuComponent : menuComponents) {
-            menuComponent.print();
+    public List<MenuComponent> getChildren() { return Collections.unmodifiableList(children()); }
+
+    @Override
+    public int getItemCount() { return itemCount; }
+    @Override
+    public double getTotalPrice() { return totalPrice; }
+    @Override
+    public double getMinPrice() { return minPrice; }
+    @Override
+    public double getMaxPrice() { return maxPrice; }
+
+    // Only needed when the removed subtree held an extreme; children already have fresh values.
+    private void recomputeExtremes() {
+        minPrice = Double.POSITIVE_INFINITY;
+        maxPrice = Double.NEGATIVE_INFINITY;
+        for (MenuComponent menuComponent : children()) {
+            minPrice = Math.min(minPrice, menuComponent.getMinPrice());
+            maxPrice = Math.max(maxPrice, menuComponent.getMaxPrice());
         }
     }
 
+    @Override
+    protected void printLine(Writer out) throws IOException {
+        out.write(getName());
+        out.write(": ");
+        out.write(getDescription());
+        out.write(System.lineSeparator());
+    }
+
     @Override
     public String getName() { return name; }
     @Override
     public String getDescription() { return description; }
 }
 
-class RestaurantApp {
-    public static void main(String[] args) {
-        MenuComponent pancakeHouseMenu = new Menu("Pancake House Menu", "Breakfast");
-        pancakeHouseMenu.add(new MenuItem("Pancakes", "Delicious pancakes", 2.99));
-        pancakeHouseMenu.add(new MenuItem("Waffles", "Crispy waffles", 3.99));
+// Sorted secondary indexes over the items of a menu subtree: by name for prefix lookups and by
+// price for range scans and cheapest-first queries, each O(log n) plus the size of the result.
+class MenuIndex {
+    private final NavigableMap<String, List<MenuItem>> byName = new TreeMap<>();
+    private final NavigableMap<Double, List<MenuItem>> byPrice = new TreeMap<>();
+    private int size;
 
-        MenuComponent dinerMenu = new Menu("Diner Menu", "Lunch");
-        dinerMenu.add(new MenuItem("Burger", "Juicy burger", 5.99));
-        
-        MenuComponent cafeMenu = new Menu("Cafe Menu", "Dinner");
-        cafeMenu.add(new MenuItem("Pasta", "Creamy pasta", 7.99));
+    void add(MenuComponent menuComponent) {
+        forEachItem(menuComponent, item -> {
+            byName.computeIfAbsent(item.getName(), key -> new ArrayList<>(1)).add(item);
+            byPrice.computeIfAbsent(item.getPrice(), key -> new ArrayList<>(1)).add(item);
+            size++;
+        });
+    }
+
+    void remove(MenuComponent menuComponent) {
+        forEachItem(menuComponent, item -> {
+            removeFrom(byName, item.getName(), item);
+            removeFrom(byPrice, item.getPrice(), item);
+            size--;
+        });
+    }
+
+    public List<MenuItem> findByNamePrefix(String prefix) {
+        List<MenuItem> result = new ArrayList<>();
+        for (Map.Entry<String, List<MenuItem>> entry : byName.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            result.addAll(entry.getValue());
+        }
+        return result;
+    }
 
-        MenuComponent allMenus = new Menu("All Menus", "All available menus");
-        allMenus.add(pancakeHouseMenu);
-        allMenus.add(dinerMenu);
-        allMenus.add(cafeMenu);
+    public List<MenuItem> findByPriceRange(double minPrice, double maxPrice) {
+        List<MenuItem> result = new ArrayList<>();
+        for (List<MenuItem> items : byPrice.subMap(minPrice, true, maxPrice, true).values()) {
+            result.addAll(items);
+        }
+        return result;
+    }
+
+    public List<MenuItem> findCheapest(int count) {
+        List<MenuItem> result = new ArrayList<>(Math.min(count, size));
+        for (List<MenuItem> items : byPrice.values()) {
+            for (MenuItem item : items) {
+                if (result.size() == count) {
+                    return result;
+                }
+                result.add(item);
+            }
+        }
+        return result;
+    }
 
-        allMenus.print();
+    public int size() {
+        return size;
     }
-}
 
-// Assignment 4: Decorator Pattern - Pizza Ordering System
+    private static <K> void removeFrom(Map<K, List<MenuItem>> map, K key, MenuItem item) {
+        List<MenuItem> items = map.get(key);
+        if (items != null && items.remove(item) && items.isEmpty()) {
+            map.remove(key);
+        }
+    }
 
-interface Pizza {
-    String getDescription();
-    double getCost();
+    private static void forEachItem(MenuComponent root, Consumer<MenuItem> action) {
+        Deque<MenuComponent> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            MenuComponent menuComponent = pending.pop();
+            if (menuComponent instanceof MenuItem item) {
+                action.accept(item);
+            }
+            for (MenuComponent child : menuComponent.getChildren()) {
+                pending.push(child);
+            }
+        }
+    }
 }
 
-class MargheritaPizza implements Pizza {
-    @Override
-    public String getDescription() {
-        return "Margherita Pizza";
+class MenuIndexBenchmark {
+    public static void main(String[] args) {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        for (int items : new int[] {100_000, 1_000_000}) {
+            Random random = new Random(42);
+            Menu root = new Menu("Catalog", "Benchmark catalog");
+            root.createIndex();
+            Menu menu = null;
+            for (int i = 0; i < items; i++) {
+                if (i % 100 == 0) {
+                    menu = new Menu("Menu " + i, "Submenu");
+                    root.add(menu);
+                }
+                menu.add(new MenuItem("Dish " + random.nextInt(items), "Benchmark dish", random.nextInt(100_000) / 100.0));
+            }
+            MenuIndex index = root.getIndex();
+
+            long start = System.nanoTime();
+            long found = 0;
+            for (int q = 0; q < queries; q++) {
+                String prefix = "Dish " + random.nextInt(items / 10);
+                double low = random.nextInt(99_000) / 100.0;
+                found += index.findByNamePrefix(prefix).size() + index.findByPriceRange(low, low + 1).size() + index.findCheapest(10).size();
+            }
+            double indexed = (System.nanoTime() - start) / 1e3 / queries;
+
+            start = System.nanoTime();
+            for (int q = 0; q < queries; q++) {
+                String prefix = "Dish " + random.nextInt(items / 10);
+                double low = random.nextInt(99_000) / 100.0;
+                found += naiveQueries(root, prefix, low, low + 1, 10);
+            }
+            double naive = (System.nanoTime() - start) / 1e3 / queries;
+
+            System.out.printf("%,d items: index %.1f us/query set, traversal %.1f us/query set (%d results)%n", items, indexed, naive, found);
+        }
     }
 
-    @Override
-    public double getCost() {
-        return 5.00;
+    private static int naiveQueries(MenuComponent root, String prefix, double low, double high, int cheapest) {
+        int matches = 0;
+        PriorityQueue<Double> top = new PriorityQueue<>(Comparator.reverseOrder());
+        Deque<MenuComponent> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            MenuComponent menuComponent = pending.pop();
+            if (menuComponent instanceof MenuItem) {
+                double price = menuComponent.getPrice();
+                if (menuComponent.getName().startsWith(prefix)) {
+                    matches++;
+                }
+                if (price >= low && price <= high) {
+                    matches++;
+                }
+                top.add(price);
+                if (top.size() > cheapest) {
+                    top.poll();
+                }
+            }
+            for (MenuComponent child : menuComponent.getChildren()) {
+                pending.push(child);
+            }
+        }
+        return matches + top.size();
     }
 }
 
-class VegetarianPizza implements Pizza {
-    @Override
-    public String getDescription() {
-        return "Vegetarian Pizza";
+// Catalog file layout, one UTF-8 line per component in pre-order, fields separated by tabs:
+//   I <name> <description> <price>
+//   M <name> <description> <item count> <price sum> <min price> <max price> <children bytes>
+// A menu line is followed by its children; the fixed-width trailing fields (counts in decimal,
+// prices as hex double bits) let the writer patch them in after streaming the children and let
+// the reader skip a whole submenu without parsing it.
+class MenuCatalogWriter implements Closeable {
+    private static final int TRAILER_LENGTH = 20 + 1 + 16 + 1 + 16 + 1 + 16 + 1 + 20 + 1;
+
+    private final FileChannel channel;
+    private final Deque<long[]> openMenus = new ArrayDeque<>();
+    private long position;
+
+    public MenuCatalogWriter(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
-    @Override
-    public double getCost() {
-        return 6.00;
+    public void write(MenuComponent menuComponent) throws IOException {
+        if (menuComponent instanceof MenuItem) {
+            item(menuComponent.getName(), menuComponent.getDescription(), menuComponent.getPrice());
+            return;
+        }
+        beginMenu(menuComponent.getName(), menuComponent.getDescription());
+        for (MenuComponent child : menuComponent.getChildren()) {
+            write(child);
+        }
+        endMenu();
     }
-}
 
-abstract class ToppingDecorator implements Pizza {
-    protected Pizza pizza;
+    public void beginMenu(String name, String description) throws IOException {
+        if (openMenus.isEmpty() && position > 0) {
+            throw new IllegalStateException("A catalog holds a single root menu");
+        }
+        write("M\t" + clean(name) + "\t" + clean(description) + "\t" + " ".repeat(TRAILER_LENGTH - 1) + "\n");
+        // trailer position, item count, then the bits of price sum, min and max
+        openMenus.push(new long[] {position - TRAILER_LENGTH, 0, Double.doubleToLongBits(0),
+                Double.doubleToLongBits(Double.POSITIVE_INFINITY), Double.doubleToLongBits(Double.NEGATIVE_INFINITY)});
+    }
 
-    public ToppingDecorator(Pizza pizza) {
-        this.pizza = pizza;
+    public void item(String name, String description, double price) throws IOException {
+        if (openMenus.isEmpty()) {
+            throw new IllegalStateException("Items must be written inside a menu");
+        }
+        write("I\t" + clean(name) + "\t" + clean(description) + "\t" + price + "\n");
+        count(openMenus.peek(), 1, price, price, price);
+    }
+
+    public void endMenu() throws IOException {
+        long[] menu = openMenus.pop();
+        String trailer = String.format("%020d\t%016x\t%016x\t%016x\t%020d\n",
+                menu[1], menu[2], menu[3], menu[4], position - menu[0] - TRAILER_LENGTH);
+        channel.write(ByteBuffer.wrap(trailer.getBytes(StandardCharsets.UTF_8)), menu[0]);
+        if (!openMenus.isEmpty()) {
+            count(openMenus.peek(), menu[1], Double.longBitsToDouble(menu[2]),
+                    Double.longBitsToDouble(menu[3]), Double.longBitsToDouble(menu[4]));
+        }
     }
 
     @Override
-    public String getDescription() {
-        return pizza.getDescription();
+    public void close() throws IOException {
+        if (!openMenus.isEmpty()) {
+            throw new IllegalStateException(openMenus.size() + " menus left open");
+        }
+        channel.close();
     }
 
-    @Override
-    public double getCost() {
-        return pizza.getCost();
+    private static void count(long[] menu, long items, double total, double min, double max) {
+        menu[1] += items;
+        menu[2] = Double.doubleToLongBits(Double.longBitsToDouble(menu[2]) + total);
+        menu[3] = Double.doubleToLongBits(Math.min(Double.longBitsToDouble(menu[3]), min));
+        menu[4] = Double.doubleToLongBits(Math.max(Double.longBitsToDouble(menu[4]), max));
     }
-}
+
+    private void write(String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            position += channel.write(bytes, position);
+        }
+    }
+
+    private static String clean(String text) {
+        return text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
+
+// Opens a catalog written by MenuCatalogWriter as a tree of LazyMenus. Only the root line is read
+// up front; a menu parses its own section of the file the first time its children are visited,
+// and the least recently visited menus are unloaded once more than maxLoadedComponents are live.
+class MenuCatalog implements Closeable {
+    private final FileChannel channel;
+    private final int maxLoadedComponents;
+    // Loaded menus in access order, with the number of children each one holds in memory.
+    private final LinkedHashMap<LazyMenu, Integer> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private int loadedComponents;
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).limit(0);
+    private long bufferStart;
+    private long lineEnd;
+
+    public MenuCatalog(Path file, int maxLoadedComponents) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.maxLoadedComponents = maxLoadedComponents;
+    }
+
+    public Menu getRoot() {
+        MenuComponent root = parse(readLine(0));
+        if (!(root instanceof Menu menu)) {
+            throw new IllegalStateException("Catalog does not start with a menu");
+        }
+        return menu;
+    }
+
+    public int getLoadedComponents() {
+        return loadedComponents;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    List<MenuComponent> load(LazyMenu menu) {
+        List<MenuComponent> children = new ArrayList<>();
+        long end = menu.childrenStart + menu.childrenLength;
+        for (long position = menu.childrenStart; position < end; ) {
+            MenuComponent child = parse(readLine(position));
+            position = lineEnd;
+            if (child instanceof LazyMenu submenu) {
+                position += submenu.childrenLength;
+            }
+            children.add(child);
+        }
+        loaded.put(menu, children.size());
+        loadedComponents += children.size();
+        return children;
+    }
+
+    void touch(LazyMenu menu) {
+        loaded.get(menu);
+    }
+
+    // Runs after a load has been attached; the menu just visited is never the one evicted.
+    void trim(LazyMenu justLoaded) {
+        Iterator<Map.Entry<LazyMenu, Integer>> eldest = loaded.entrySet().iterator();
+        while (loadedComponents > maxLoadedComponents && eldest.hasNext()) {
+            Map.Entry<LazyMenu, Integer> entry = eldest.next();
+            LazyMenu menu = entry.getKey();
+            if (menu != justLoaded && !menu.isPinned() && !isAncestor(menu, justLoaded)) {
+                eldest.remove();
+                unload(menu, entry.getValue());
+                // unloading also drops loaded descendants, so restart from the eldest entry
+                eldest = loaded.entrySet().iterator();
+            }
+        }
+    }
+
+    private void unload(LazyMenu menu, int components) {
+        for (MenuComponent child : menu.loadedChildren()) {
+            if (child instanceof LazyMenu submenu && submenu.isLoaded()) {
+                unload(submenu, loaded.remove(submenu));
+            }
+        }
+        loadedComponents -= components;
+        menu.unload();
+    }
+
+    private static boolean isAncestor(Menu menu, MenuComponent menuComponent) {
+        for (Menu parent = menuComponent.parent; parent != null; parent = parent.parent) {
+            if (parent == menu) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private MenuComponent parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields[0].equals("I") && fields.length == 4) {
+            return new MenuItem(fields[1], fields[2], Double.parseDouble(fields[3]));
+        }
+        if (fields[0].equals("M") && fields.length == 8) {
+            return new LazyMenu(this, fields[1], fields[2], Integer.parseInt(fields[3]),
+                    Double.longBitsToDouble(Long.parseUnsignedLong(fields[4], 16)),
+                    Double.longBitsToDouble(Long.parseUnsignedLong(fields[5], 16)),
+                    Double.longBitsToDouble(Long.parseUnsignedLong(fields[6], 16)),
+                    lineEnd, Long.parseLong(fields[7]));
+        }
+        throw new IllegalStateException("Malformed catalog line: " + line);
+    }
+
+    // Reads the line starting at position through a reusable window over the file.
+    private String readLine(long position) {
+        try {
+            while (true) {
+                int from = (int) (position - bufferStart);
+                if (position >= bufferStart && position <= bufferStart + buffer.limit()) {
+                    for (int i = from; i < buffer.limit(); i++) {
+                        if (buffer.get(i) == '\n') {
+                            lineEnd = bufferStart + i + 1;
+                            return new String(buffer.array(), from, i - from, StandardCharsets.UTF_8);
+                        }
+                    }
+                    if (from == 0 && buffer.limit() == buffer.capacity()) {
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                    }
+                }
+                buffer.clear();
+                bufferStart = position;
+                while (buffer.hasRemaining() && channel.read(buffer, bufferStart + buffer.position()) > 0) {
+                    // keep filling the window until it is full or the file ends
+                }
+                buffer.flip();
+                if (!buffer.hasRemaining()) {
+                    throw new EOFException("Catalog truncated at " + position);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+class LazyMenu extends Menu {
+    private final MenuCatalog catalog;
+    final long childrenStart;
+    final long childrenLength;
+    private boolean loaded;
+    private boolean pinned;
+
+    LazyMenu(MenuCatalog catalog, String name, String description, int itemCount, double totalPrice,
+             double minPrice, double maxPrice, long childrenStart, long childrenLength) {
+        super(name, description, itemCount, totalPrice, minPrice, maxPrice);
+        this.catalog = catalog;
+        this.childrenStart = childrenStart;
+        this.childrenLength = childrenLength;
+    }
+
+    @Override
+    protected List<MenuComponent> children() {
+        if (!loaded) {
+            attachLoaded(catalog.load(this));
+            loaded = true;
+            catalog.trim(this);
+        } else {
+            catalog.touch(this);
+        }
+        return super.children();
+    }
+
+    // An edited menu no longer matches the file, so it and its lazy ancestors stay in memory.
+    @Override
+    public void add(MenuComponent menuComponent) {
+        pin();
+        super.add(menuComponent);
+    }
+
+    @Override
+    public void remove(MenuComponent menuComponent) {
+        pin();
+        super.remove(menuComponent);
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    boolean isPinned() {
+        return pinned;
+    }
+
+    List<MenuComponent> loadedChildren() {
+        return super.children();
+    }
+
+    void unload() {
+        detachLoaded();
+        loaded = false;
+    }
+
+    private void pin() {
+        for (Menu menu = this; menu != null; menu = menu.parent) {
+            if (menu instanceof LazyMenu lazyMenu) {
+                lazyMenu.pinned = true;
+            }
+        }
+    }
+}
+
+class MenuCatalogBenchmark {
+    public static void main(String[] args) throws IOException {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int budget = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        Path file = Files.createTempFile("catalog", ".menu");
+        try {
+            Random random = new Random(42);
+            try (MenuCatalogWriter writer = new MenuCatalogWriter(file)) {
+                writer.beginMenu("Catalog", "Benchmark catalog");
+                for (int i = 0; i < items; i += 100) {
+                    writer.beginMenu("Menu " + i, "Submenu");
+                    for (int j = i; j < Math.min(i + 100, items); j++) {
+                        writer.item("Dish " + j, "Benchmark dish", random.nextInt(100_000) / 100.0);
+                    }
+                    writer.endMenu();
+                }
+                writer.endMenu();
+            }
+
+            long before = usedMemory();
+            long start = System.nanoTime();
+            try (MenuCatalog catalog = new MenuCatalog(file, budget)) {
+                Menu root = catalog.getRoot();
+                System.out.printf("Open: %.2f ms, %d items, total %.2f%n", (System.nanoTime() - start) / 1e6, root.getItemCount(), root.getTotalPrice());
+
+                start = System.nanoTime();
+                long visited = 0;
+                for (MenuComponent menu : root.getChildren()) {
+                    visited += menu.getChildren().size();
+                }
+                System.out.printf("Full traversal: %d items in %.0f ms, %d components loaded, heap +%d KB%n",
+                        visited, (System.nanoTime() - start) / 1e6, catalog.getLoadedComponents(), (usedMemory() - before) >> 10);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+class MenuPrintBenchmark {
+    public static void main(String[] args) throws IOException {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Menu root = new Menu("Catalog", "Benchmark catalog");
+        Menu menu = null;
+        for (int i = 0; i < items; i++) {
+            if (i % 1000 == 0) {
+                menu = new Menu("Menu " + i, "Submenu");
+                root.add(menu);
+            }
+            menu.add(new MenuItem("Dish " + i, "Benchmark dish", i % 10_000 / 100.0));
+        }
+        Path file = Files.createTempFile("menu", ".txt");
+        try {
+            for (boolean parallel : new boolean[] {false, true}) {
+                long start = System.nanoTime();
+                try (Writer out = Files.newBufferedWriter(file)) {
+                    root.print(out, parallel);
+                }
+                System.out.printf("%s print: %.0f ms, %d MB%n", parallel ? "Parallel" : "Sequential",
+                        (System.nanoTime() - start) / 1e6, Files.size(file) >> 20);
+            }
+
+            long start = System.nanoTime();
+            try (PrintStream out = new PrintStream(Files.newOutputStream(file), true)) {
+                for (Iterator<MenuComponent> components = root.iterator(); components.hasNext(); ) {
+                    MenuComponent menuComponent = components.next();
+                    out.println(menuComponent.getName() + ": " + menuComponent.getDescription());
+                }
+            }
+            System.out.printf("Per-line println: %.0f ms%n", (System.nanoTime() - start) / 1e6);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
+
+class RestaurantApp {
+    public static void main(String[] args) {
+        MenuComponent pancakeHouseMenu = new Menu("Pancake House Menu", "Breakfast");
+        pancakeHouseMenu.add(new MenuItem("Pancakes", "Delicious pancakes", 2.99));
+        pancakeHouseMenu.add(new MenuItem("Waffles", "Crispy waffles", 3.99));
+
+        MenuComponent dinerMenu = new Menu("Diner Menu", "Lunch");
+        dinerMenu.add(new MenuItem("Burger", "Juicy burger", 5.99));
+        
+        MenuComponent cafeMenu = new Menu("Cafe Menu", "Dinner");
+        cafeMenu.add(new MenuItem("Pasta", "Creamy pasta", 7.99));
+
+        MenuComponent allMenus = new Menu("All Menus", "All available menus");
+        allMenus.add(pancakeHouseMenu);
+        allMenus.add(dinerMenu);
+        allMenus.add(cafeMenu);
+
+        allMenus.print();
+        System.out.println(allMenus.getItemCount() + " items, prices " + allMenus.getMinPrice() + " to " + allMenus.getMaxPrice());
+    }
+}
+
+// Assignment 4: Decorator Pattern - Pizza Ordering System
+
+interface Pizza {
+    String getDescription();
+    double getCost();
+}
+
+class MargheritaPizza implements Pizza {
+    @Override
+    public String getDescription() {
+        return "Margherita Pizza";
+    }
+
+    @Override
+    public double getCost() {
+        return 5.00;
+    }
+}
+
+class VegetarianPizza implements Pizza {
+    @Override
+    public String getDescription() {
+        return "Vegetarian Pizza";
+    }
+
+    @Override
+    public double getCost() {
+        return 6.00;
+    }
+}
+
+abstract class ToppingDecorator implements Pizza {
+    protected Pizza pizza;
+
+    public ToppingDecorator(Pizza pizza) {
+        this.pizza = pizza;
+    }
+
+    // Final so that the two hooks below are the whole of a topping: CompiledPizza reads only them.
+    @Override
+    public final String getDescription() {
+        return pizza.getDescription() + getToppingDescription();
+    }
+
+    @Override
+    public final double getCost() {
+        return pizza.getCost() + getToppingCost();
+    }
+
+    protected abstract String getToppingDescription();
+
+    protected abstract double getToppingCost();
+}
 
 class CheeseTopping extends ToppingDecorator {
     public CheeseTopping(Pizza pizza) {
         super(pizza);
     }
 
-    @Override
-    public String getDescription() {
-        return pizza.getDescription() + ", Cheese";
+    @Override
+    protected String getToppingDescription() {
+        return ", Cheese";
+    }
+
+    @Override
+    protected double getToppingCost() {
+        return 1.50;
+    }
+}
+
+class MushroomTopping extends ToppingDecorator {
+    public MushroomTopping(Pizza pizza) {
+        super(pizza);
+    }
+
+    @Override
+    protected String getToppingDescription() {
+        return ", Mushrooms";
+    }
+
+    @Override
+    protected double getToppingCost() {
+        return 1.00;
+    }
+}
+
+class PepperoniTopping extends ToppingDecorator {
+    public PepperoniTopping(Pizza pizza) {
+        super(pizza);
+    }
+
+    @Override
+    protected String getToppingDescription() {
+        return ", Pepperoni";
+    }
+
+    @Override
+    protected double getToppingCost() {
+        return 2.00;
+    }
+}
+
+// A decorator chain flattened into one immutable pizza. The chain is walked once, iteratively and
+// innermost topping first, so the description and cost match the chain exactly; reads are then
+// plain field accesses. Identical combinations share one interned instance; the intern table
+// holds at most MAX_INTERNED combinations, and beyond that compile returns unshared instances.
+final class CompiledPizza implements Pizza {
+    private record Key(String description, double cost) {}
+
+    static final int MAX_INTERNED = 4096;
+    private static final Map<Key, CompiledPizza> INTERNED = new ConcurrentHashMap<>();
+
+    private final String description;
+    private final double cost;
+
+    private CompiledPizza(String description, double cost) {
+        this.description = description;
+        this.cost = cost;
+    }
+
+    public static CompiledPizza compile(Pizza pizza) {
+        if (pizza instanceof CompiledPizza compiled) {
+            return compiled;
+        }
+        List<ToppingDecorator> toppings = new ArrayList<>();
+        Pizza base = pizza;
+        while (base instanceof ToppingDecorator topping) {
+            toppings.add(topping);
+            base = topping.pizza;
+        }
+        StringBuilder description = new StringBuilder(base.getDescription());
+        double cost = base.getCost();
+        for (int i = toppings.size() - 1; i >= 0; i--) {
+            description.append(toppings.get(i).getToppingDescription());
+            cost += toppings.get(i).getToppingCost();
+        }
+        Key key = new Key(description.toString(), cost);
+        CompiledPizza interned = INTERNED.get(key);
+        if (interned != null) {
+            return interned;
+        }
+        if (INTERNED.size() >= MAX_INTERNED) {
+            return new CompiledPizza(key.description(), key.cost());
+        }
+        return INTERNED.computeIfAbsent(key, k -> new CompiledPizza(k.description(), k.cost()));
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public double getCost() {
+        return cost;
+    }
+}
+
+// Prices orders held in columns: a base pizza id and a topping bitmask per order, where bit i
+// wraps the pizza in topping i (lower bits innermost). Every (base, mask) cost is computed once
+// through the real decorator chain, so batch results are identical to pricing the objects.
+class PizzaPricingEngine {
+    private static final int MAX_TOPPINGS = 16;
+    private static final int PARALLEL_CHUNK = 1 << 16;
+
+    private final int baseCount;
+    private final int toppingCount;
+    private final double[] costs;
+
+    public PizzaPricingEngine(List<Supplier<Pizza>> bases, List<UnaryOperator<Pizza>> toppings) {
+        if (toppings.size() > MAX_TOPPINGS) {
+            throw new IllegalArgumentException("At most " + MAX_TOPPINGS + " toppings are supported");
+        }
+        baseCount = bases.size();
+        toppingCount = toppings.size();
+        costs = new double[baseCount << toppingCount];
+        for (int base = 0; base < baseCount; base++) {
+            for (int mask = 0; mask < 1 << toppingCount; mask++) {
+                Pizza pizza = bases.get(base).get();
+                for (int topping = 0; topping < toppingCount; topping++) {
+                    if ((mask & (1 << topping)) != 0) {
+                        pizza = toppings.get(topping).apply(pizza);
+                    }
+                }
+                costs[(base << toppingCount) | mask] = pizza.getCost();
+            }
+        }
+    }
+
+    public static PizzaPricingEngine standard() {
+        return new PizzaPricingEngine(
+                List.of(MargheritaPizza::new, VegetarianPizza::new),
+                List.of(CheeseTopping::new, MushroomTopping::new, PepperoniTopping::new));
+    }
+
+    public double getCost(int base, int toppingMask) {
+        return costs[index(base, toppingMask)];
+    }
+
+    // Fills costs[i] for every order and returns the order total.
+    public double priceAll(int[] bases, int[] toppingMasks, double[] costs) {
+        checkColumns(bases, toppingMasks, costs);
+        price(bases, toppingMasks, costs, 0, bases.length);
+        return sum(costs);
+    }
+
+    // Same results as priceAll; chunks are priced on the common pool, then summed in order.
+    public double priceAllParallel(int[] bases, int[] toppingMasks, double[] costs) {
+        checkColumns(bases, toppingMasks, costs);
+        int chunks = (bases.length + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> price(bases, toppingMasks, costs,
+                chunk * PARALLEL_CHUNK, Math.min(bases.length, (chunk + 1) * PARALLEL_CHUNK)));
+        return sum(costs);
+    }
+
+    private void price(int[] bases, int[] toppingMasks, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = costs[index(bases[i], toppingMasks[i])];
+        }
+    }
+
+    private int index(int base, int toppingMask) {
+        if (base < 0 || base >= baseCount || toppingMask >>> toppingCount != 0) {
+            throw new IllegalArgumentException("Unknown pizza: base " + base + ", toppings " + Integer.toBinaryString(toppingMask));
+        }
+        return (base << toppingCount) | toppingMask;
+    }
+
+    private static double sum(double[] values) {
+        double total = 0;
+        for (double value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    private static void checkColumns(int[] bases, int[] toppingMasks, double[] costs) {
+        if (toppingMasks.length != bases.length || costs.length != bases.length) {
+            throw new IllegalArgumentException("Order columns differ in length");
+        }
+    }
+}
+
+class PizzaPricingBenchmark {
+    public static void main(String[] args) {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        PizzaPricingEngine engine = PizzaPricingEngine.standard();
+        Random random = new Random(42);
+        int[] bases = new int[orders];
+        int[] toppingMasks = new int[orders];
+        Pizza[] pizzas = new Pizza[orders];
+        for (int i = 0; i < orders; i++) {
+            bases[i] = random.nextInt(2);
+            toppingMasks[i] = random.nextInt(8);
+            Pizza pizza = bases[i] == 0 ? new MargheritaPizza() : new VegetarianPizza();
+            pizza = (toppingMasks[i] & 1) != 0 ? new CheeseTopping(pizza) : pizza;
+            pizza = (toppingMasks[i] & 2) != 0 ? new MushroomTopping(pizza) : pizza;
+            pizzas[i] = (toppingMasks[i] & 4) != 0 ? new PepperoniTopping(pizza) : pizza;
+        }
+        double[] costs = new double[orders];
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            double chainTotal = 0;
+            for (Pizza pizza : pizzas) {
+                chainTotal += pizza.getCost();
+            }
+            long chain = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            double batchTotal = engine.priceAll(bases, toppingMasks, costs);
+            long batch = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            double parallelTotal = engine.priceAllParallel(bases, toppingMasks, costs);
+            long parallel = System.nanoTime() - start;
+
+            if (chainTotal != batchTotal || batchTotal != parallelTotal) {
+                throw new IllegalStateException("Totals differ: " + chainTotal + ", " + batchTotal + ", " + parallelTotal);
+            }
+            System.out.printf("Round %d: chain %.1f M/s, batch %.1f M/s, parallel %.1f M/s%n", round,
+                    orders * 1e3 / chain, orders * 1e3 / batch, orders * 1e3 / parallel);
+        }
+    }
+}
+
+class PizzaShop {
+    public static void main(String[] args) {
+        Pizza pizza = new MargheritaPizza();
+        pizza = new CheeseTopping(pizza);
+        pizza = new MushroomTopping(pizza);
+        System.out.println("Order: " + pizza.getDescription() + ", Total Cost: " + pizza.getCost());
+
+        Pizza pizza2 = new VegetarianPizza();
+        pizza2 = new PepperoniTopping(pizza2);
+        System.out.println("Order: " + pizza2.getDescription() + ", Total Cost: " + pizza2.getCost());
+
+        Pizza compiled = CompiledPizza.compile(pizza);
+        System.out.println("Compiled order: " + compiled.getDescription() + ", Total Cost: " + compiled.getCost());
+    }
+}
+
+// Assignment 5: Facade Pattern - Smart Home System
+
+class Light {
+    public void turnOn() {
+        System.out.println("Lights are on");
+    }
+
+    public void turnOff() {
+        System.out.println("Lights are off");
+    }
+}
+
+class Thermostat {
+    public void setTemperature(int temperature) {
+        System.out.println("Temperature set to " + temperature + " degrees");
+    }
+}
+
+class SecuritySystem {
+    public void activate() {
+        System.out.println("Security system activated");
+    }
+
+    public void deactivate() {
+        System.out.println("Security system deactivated");
+    }
+}
+
+class EntertainmentSystem {
+    public void startMovie() {
+        System.out.println("Starting movie...");
+    }
+
+    public void stopMovie() {
+        System.out.println("Stopping movie...");
+    }
+}
+
+// A named set of device steps. Steps without dependencies start together; a step listing
+// dependencies starts once they have all finished. Dependencies must be declared first.
+class Scene {
+    static final long DEFAULT_TIMEOUT_MILLIS = 5_000;
+
+    static final class Step {
+        final String name;
+        final Runnable action;
+        final List<String> dependencies;
+        final long timeoutMillis;
+
+        Step(String name, Runnable action, List<String> dependencies, long timeoutMillis) {
+            this.name = name;
+            this.action = action;
+            this.dependencies = dependencies;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    private final String name;
+    private final Map<String, Step> steps = new LinkedHashMap<>();
+
+    public Scene(String name) {
+        this.name = name;
+    }
+
+    public Scene step(String stepName, Runnable action, String... dependencies) {
+        return step(stepName, DEFAULT_TIMEOUT_MILLIS, action, dependencies);
+    }
+
+    public Scene step(String stepName, long timeoutMillis, Runnable action, String... dependencies) {
+        for (String dependency : dependencies) {
+            if (!steps.containsKey(dependency)) {
+                throw new IllegalArgumentException("Step " + stepName + " depends on undeclared step " + dependency);
+            }
+        }
+        if (steps.putIfAbsent(stepName, new Step(stepName, action, List.of(dependencies), timeoutMillis)) != null) {
+            throw new IllegalArgumentException("Duplicate step " + stepName);
+        }
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    Collection<Step> getSteps() {
+        return steps.values();
+    }
+}
+
+class SceneReport {
+    private final String scene;
+    private final Map<String, Long> stepNanos = new LinkedHashMap<>();
+    private final Map<String, String> failures = new LinkedHashMap<>();
+    private long totalNanos;
+
+    SceneReport(String scene) {
+        this.scene = scene;
+    }
+
+    synchronized void recordStep(String step, long nanos) {
+        stepNanos.put(step, nanos);
+    }
+
+    synchronized void recordFailure(String step, String reason) {
+        failures.put(step, reason);
+    }
+
+    void recordTotal(long nanos) {
+        totalNanos = nanos;
+    }
+
+    public synchronized Map<String, Long> getStepNanos() {
+        return new LinkedHashMap<>(stepNanos);
+    }
+
+    public synchronized Map<String, String> getFailures() {
+        return new LinkedHashMap<>(failures);
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public synchronized boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder report = new StringBuilder(String.format("%s: %.1f ms", scene, totalNanos / 1e6));
+        stepNanos.forEach((step, nanos) -> report.append(String.format(", %s %.1f ms", step, nanos / 1e6)));
+        failures.forEach((step, reason) -> report.append(", ").append(step).append(' ').append(reason));
+        return report.toString();
+    }
+}
+
+// Runs every step on its own virtual thread, so a scene takes about as long as its slowest chain
+// of dependent steps instead of the sum of all device latencies.
+class SceneRunner {
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public SceneReport run(Scene scene) {
+        SceneReport report = new SceneReport(scene.getName());
+        Map<String, CompletableFuture<Void>> steps = new LinkedHashMap<>();
+        Set<String> ran = ConcurrentHashMap.newKeySet();
+        long start = System.nanoTime();
+        for (Scene.Step step : scene.getSteps()) {
+            CompletableFuture<?>[] dependencies = step.dependencies.stream().map(steps::get).toArray(CompletableFuture<?>[]::new);
+            Runnable timed = () -> {
+                ran.add(step.name);
+                long stepStart = System.nanoTime();
+                step.action.run();
+                report.recordStep(step.name, System.nanoTime() - stepStart);
+            };
+            steps.put(step.name, CompletableFuture.allOf(dependencies).thenCompose(ready ->
+                    CompletableFuture.runAsync(timed, executor).orTimeout(step.timeoutMillis, TimeUnit.MILLISECONDS)));
+        }
+        steps.forEach((name, future) -> {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                report.recordFailure(name, !ran.contains(name) ? "skipped"
+                        : cause instanceof TimeoutException ? "timed out" : "failed: " + cause);
+            }
+        });
+        report.recordTotal(System.nanoTime() - start);
+        return report;
+    }
+}
+
+// Last known state of one device. A command is sent only when it would change that state, or
+// when the state is unknown because it was never set or has been invalidated.
+class DeviceShadow<T> {
+    private T state;
+    private boolean known;
+    private long sent;
+    private long suppressed;
+
+    public synchronized boolean apply(T target, Runnable command) {
+        if (known && Objects.equals(state, target)) {
+            suppressed++;
+            return false;
+        }
+        known = false;
+        command.run();
+        state = target;
+        known = true;
+        sent++;
+        return true;
+    }
+
+    // Call when the device may have been changed outside this facade.
+    public synchronized void invalidate() {
+        known = false;
+    }
+
+    // Call with a state read back from the device.
+    public synchronized void resync(T actual) {
+        state = actual;
+        known = true;
+    }
+
+    public synchronized T get() {
+        return known ? state : null;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getSuppressed() {
+        return suppressed;
+    }
+}
+
+class SmartHomeFacade {
+    private Light light;
+    private Thermostat thermostat;
+    private SecuritySystem securitySystem;
+    private EntertainmentSystem entertainmentSystem;
+    private final SceneRunner sceneRunner = new SceneRunner();
+    private final DeviceShadow<Boolean> lightsOn = new DeviceShadow<>();
+    private final DeviceShadow<Integer> temperature = new DeviceShadow<>();
+    private final DeviceShadow<Boolean> securityActive = new DeviceShadow<>();
+    private final DeviceShadow<Boolean> moviePlaying = new DeviceShadow<>();
+    private final Scene arriveHome;
+    private final Scene leaveHome;
+    private final Scene movieMode;
+
+    public SmartHomeFacade() {
+        this(new Light(), new Thermostat(), new SecuritySystem(), new EntertainmentSystem());
+    }
+
+    public SmartHomeFacade(Light light, Thermostat thermostat, SecuritySystem securitySystem, EntertainmentSystem entertainmentSystem) {
+        this.light = light;
+        this.thermostat = thermostat;
+        this.securitySystem = securitySystem;
+        this.entertainmentSystem = entertainmentSystem;
+        arriveHome = new Scene("Arrive home")
+                .step("lights", () -> lightsOn.apply(true, light::turnOn))
+                .step("thermostat", () -> temperature.apply(22, () -> thermostat.setTemperature(22)))
+                .step("security", () -> securityActive.apply(false, securitySystem::deactivate));
+        leaveHome = new Scene("Leave home")
+                .step("lights", () -> lightsOn.apply(false, light::turnOff))
+                .step("security", () -> securityActive.apply(true, securitySystem::activate));
+        movieMode = new Scene("Movie mode")
+                .step("lights", () -> lightsOn.apply(false, light::turnOff))
+                .step("movie", () -> moviePlaying.apply(true, entertainmentSystem::startMovie), "lights");
+    }
+
+    public DeviceShadow<Boolean> getLightState() { return lightsOn; }
+    public DeviceShadow<Integer> getTemperatureState() { return temperature; }
+    public DeviceShadow<Boolean> getSecurityState() { return securityActive; }
+    public DeviceShadow<Boolean> getMovieState() { return moviePlaying; }
+
+    public void invalidateDeviceStates() {
+        lightsOn.invalidate();
+        temperature.invalidate();
+        securityActive.invalidate();
+        moviePlaying.invalidate();
+    }
+
+    public SceneReport arriveHome() {
+        SceneReport report = sceneRunner.run(arriveHome);
+        System.out.println("Welcome home!");
+        return report;
+    }
+
+    public SceneReport leaveHome() {
+        SceneReport report = sceneRunner.run(leaveHome);
+        System.out.println("Goodbye!");
+        return report;
+    }
+
+    public SceneReport movieMode() {
+        SceneReport report = sceneRunner.run(movieMode);
+        System.out.println("Movie mode activated.");
+        return report;
+    }
+}
+
+class SmartHomeApp {
+    public static void main(String[] args) {
+        SmartHomeFacade smartHome = new SmartHomeFacade();
+        smartHome.arriveHome();
+        smartHome.movieMode();
+        smartHome.leaveHome();
+        smartHome.leaveHome();
+        System.out.println("Light commands sent: " + smartHome.getLightState().getSent()
+                + ", suppressed: " + smartHome.getLightState().getSuppressed());
+    }
+}
+
+class SmartHomeSceneBenchmark {
+    public static void main(String[] args) {
+        long delayMillis = args.length > 0 ? Long.parseLong(args[0]) : 100;
+        SmartHomeFacade smartHome = new SmartHomeFacade(
+                new Light() {
+                    @Override
+                    public void turnOn() { pause(delayMillis); super.turnOn(); }
+                    @Override
+                    public void turnOff() { pause(delayMillis / 2); super.turnOff(); }
+                },
+                new Thermostat() {
+                    @Override
+                    public void setTemperature(int temperature) { pause(delayMillis * 2); super.setTemperature(temperature); }
+                },
+                new SecuritySystem() {
+                    @Override
+                    public void activate() { pause(delayMillis); super.activate(); }
+                    @Override
+                    public void deactivate() { pause(delayMillis); super.deactivate(); }
+                },
+                new EntertainmentSystem() {
+                    @Override
+                    public void startMovie() { pause(delayMillis); super.startMovie(); }
+                });
+        System.out.println(smartHome.arriveHome());
+        System.out.println(smartHome.movieMode());
+        System.out.println(smartHome.leaveHome());
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Assignment 6: Flyweight Pattern - Character Rendering in a Text Editor
+
+class Character {
+    private final char value;
+    private final String font;
+    private final int size;
+
+    public Character(char value, String font, int size) {
+        this.value = value;
+        this.font = font;
+        this.size = size;
+    }
+
+    public char getValue() { return value; }
+    public String getFont() { return font; }
+    public int getSize() { return size; }
+}
+
+class CharacterFactory {
+    static final int MAX_FONTS = 1 << 23;
+    static final int MAX_SIZE = (1 << 24) - 1;
+
+    private final Map<String, Integer> fontIds = new HashMap<>();
+
+    // A style is an interned (font, size) pair; ids are dense so they can index the arrays below.
+    private long[] styleKeys = new long[16];
+    private int[] styleIds = new int[16];
+    private String[] styleFonts = new String[8];
+    private int[] styleSizes = new int[8];
+    private int styleCount;
+    private String lastFont;
+    private int lastSize;
+    private int lastStyleId = -1;
+
+    // Open-addressing table keyed by (style id + 1, char), so 0 marks an empty slot.
+    private long[] keys = new long[64];
+    private Character[] characters = new Character[64];
+    private int count;
+
+    public Character getCharacter(char value, String font, int size) {
+        return getCharacter(value, getStyleId(font, size));
+    }
+
+    public Character getCharacter(char value, int styleId) {
+        if (styleId < 0 || styleId >= styleCount) {
+            throw new IllegalArgumentException("Unknown style: " + styleId);
+        }
+        long key = ((long) (styleId + 1) << 16) | value;
+        int slot = slot(keys, key);
+        if (keys[slot] == key) {
+            return characters[slot];
+        }
+        Character character = new Character(value, styleFonts[styleId], styleSizes[styleId]);
+        keys[slot] = key;
+        characters[slot] = character;
+        if (++count * 2 > keys.length) {
+            resizeCharacters();
+        }
+        return character;
+    }
+
+    public int getStyleId(String font, int size) {
+        if (lastStyleId >= 0 && font == lastFont && size == lastSize) {
+            return lastStyleId;
+        }
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Unsupported font size: " + size);
+        }
+        long key = ((long) fontId(font) << 24) | size;
+        int slot = slot(styleKeys, key);
+        int id;
+        if (styleKeys[slot] == key) {
+            id = styleIds[slot];
+        } else {
+            id = styleCount++;
+            if (id == styleFonts.length) {
+                styleFonts = Arrays.copyOf(styleFonts, id * 2);
+                styleSizes = Arrays.copyOf(styleSizes, id * 2);
+            }
+            styleFonts[id] = font;
+            styleSizes[id] = size;
+            styleKeys[slot] = key;
+            styleIds[slot] = id;
+            if (styleCount * 2 > styleKeys.length) {
+                resizeStyles();
+            }
+        }
+        lastFont = font;
+        lastSize = size;
+        lastStyleId = id;
+        return id;
+    }
+
+    public String getFont(int styleId) {
+        return styleFonts[styleId];
+    }
+
+    public int getSize(int styleId) {
+        return styleSizes[styleId];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private int fontId(String font) {
+        Integer id = fontIds.get(font);
+        if (id == null) {
+            if (fontIds.size() + 1 >= MAX_FONTS) {
+                throw new IllegalStateException("Too many fonts");
+            }
+            id = fontIds.size() + 1;
+            fontIds.put(font, id);
+        }
+        return id;
+    }
+
+    private void resizeCharacters() {
+        long[] oldKeys = keys;
+        Character[] oldCharacters = characters;
+        keys = new long[oldKeys.length * 2];
+        characters = new Character[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                characters[slot] = oldCharacters[i];
+            }
+        }
+    }
+
+    private void resizeStyles() {
+        long[] oldKeys = styleKeys;
+        int[] oldIds = styleIds;
+        styleKeys = new long[oldKeys.length * 2];
+        styleIds = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(styleKeys, oldKeys[i]);
+                styleKeys[slot] = oldKeys[i];
+                styleIds[slot] = oldIds[i];
+            }
+        }
+    }
+
+    // Returns the slot holding key, or the empty slot where it belongs.
+    private static int slot(long[] table, long key) {
+        int mask = table.length - 1;
+        int slot = mix(key) & mask;
+        while (table[slot] != 0 && table[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    static int mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
+
+// Shared pool for editors running on different threads. Tables are split into stripes; a lookup
+// reads the current table of its stripe without locking, and only a miss locks the stripe to insert.
+class ConcurrentCharacterFactory extends CharacterFactory {
+    private static final int STRIPES = 64;
+
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<Object> values;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+        }
+    }
+
+    private static final class Stripe {
+        volatile Table table = new Table(16);
+        int count;
+    }
+
+    private static final class Style {
+        final int id;
+        final String font;
+        final int size;
+
+        Style(int id, String font, int size) {
+            this.id = id;
+            this.font = font;
+            this.size = size;
+        }
+    }
+
+    private final Map<String, Integer> fontIds = new ConcurrentHashMap<>();
+    private final Stripe[] glyphStripes = newStripes();
+    private final Stripe[] styleStripes = newStripes();
+    private volatile Style[] styles = new Style[0];
+    private final AtomicInteger glyphCount = new AtomicInteger();
+
+    @Override
+    public Character getCharacter(char value, int styleId) {
+        Style[] current = styles;
+        if (styleId < 0 || styleId >= current.length) {
+            throw new IllegalArgumentException("Unknown style: " + styleId);
+        }
+        long key = ((long) (styleId + 1) << 16) | value;
+        Object found = lookup(glyphStripes, key);
+        if (found != null) {
+            return (Character) found;
+        }
+        Style style = current[styleId];
+        return (Character) insert(glyphStripes, key, () -> {
+            glyphCount.incrementAndGet();
+            return new Character(value, style.font, style.size);
+        });
+    }
+
+    @Override
+    public int getStyleId(String font, int size) {
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Unsupported font size: " + size);
+        }
+        long key = ((long) fontId(font) << 24) | size;
+        Object found = lookup(styleStripes, key);
+        if (found == null) {
+            found = insert(styleStripes, key, () -> addStyle(font, size));
+        }
+        return ((Style) found).id;
+    }
+
+    @Override
+    public String getFont(int styleId) {
+        return styles[styleId].font;
+    }
+
+    @Override
+    public int getSize(int styleId) {
+        return styles[styleId].size;
+    }
+
+    @Override
+    public int size() {
+        return glyphCount.get();
+    }
+
+    private int fontId(String font) {
+        Integer id = fontIds.get(font);
+        if (id == null) {
+            synchronized (fontIds) {
+                id = fontIds.get(font);
+                if (id == null) {
+                    if (fontIds.size() + 1 >= MAX_FONTS) {
+                        throw new IllegalStateException("Too many fonts");
+                    }
+                    id = fontIds.size() + 1;
+                    fontIds.put(font, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    private synchronized Style addStyle(String font, int size) {
+        Style[] current = styles;
+        Style style = new Style(current.length, font, size);
+        Style[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[style.id] = style;
+        styles = grown;
+        return style;
+    }
+
+    private static Object lookup(Stripe[] stripes, long key) {
+        int hash = mix(key);
+        Table table = stripes[hash >>> 26].table;
+        int mask = table.keys.length() - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long candidate = table.keys.get(slot);
+            if (candidate == key) {
+                return table.values.get(slot);
+            }
+            if (candidate == 0) {
+                return null;
+            }
+        }
+    }
+
+    // Values are published before their keys, so a reader that sees a key also sees its value.
+    private static Object insert(Stripe[] stripes, long key, Supplier<Object> factory) {
+        int hash = mix(key);
+        Stripe stripe = stripes[hash >>> 26];
+        synchronized (stripe) {
+            Table table = stripe.table;
+            int mask = table.keys.length() - 1;
+            int slot = hash & mask;
+            for (long candidate; (candidate = table.keys.get(slot)) != 0; slot = (slot + 1) & mask) {
+                if (candidate == key) {
+                    return table.values.get(slot);
+                }
+            }
+            Object value = factory.get();
+            table.values.set(slot, value);
+            table.keys.set(slot, key);
+            if (++stripe.count * 2 > table.keys.length()) {
+                stripe.table = grow(table);
+            }
+            return value;
+        }
+    }
+
+    private static Table grow(Table table) {
+        Table grown = new Table(table.keys.length() * 2);
+        int mask = grown.keys.length() - 1;
+        for (int i = 0; i < table.keys.length(); i++) {
+            long key = table.keys.get(i);
+            if (key != 0) {
+                int slot = mix(key) & mask;
+                while (grown.keys.get(slot) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                grown.values.set(slot, table.values.get(i));
+                grown.keys.set(slot, key);
+            }
+        }
+        return grown;
+    }
+
+    private static Stripe[] newStripes() {
+        Stripe[] stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        return stripes;
+    }
+}
+
+// Piece table kept in an implicit treap: every node is a run of characters in the append-only
+// buffer that share one style id, so inserts and deletes anywhere cost O(log runs) and style
+// metadata costs a node per run instead of bytes per character. Nodes also count the line
+// breaks below them so lines can be located in O(log runs).
+class TextBuffer {
+    private static final class Piece {
+        int start;
+        int length;
+        int style;
+        int size;
+        int breaks;
+        int lines;
+        final int priority;
+        Piece left;
+        Piece right;
+
+        Piece(int start, int length, int style, int priority) {
+            this.start = start;
+            this.length = length;
+            this.style = style;
+            this.priority = priority;
+            this.size = length;
+        }
+    }
+
+    private char[] chars = new char[16];
+    private int used;
+    private int[] breakPositions = new int[16];
+    private int breakCount;
+    private Piece root;
+    private int seed = 0x2545F491;
+    private final Piece[] split = new Piece[2];
+    private int foundOffset;
+
+    public int length() {
+        return size(root);
     }
 
-    @Override
-    public double getCost() {
-        return pizza.getCost() + 1.50;
+    public void insert(int offset, char value, int style) {
+        checkOffset(offset, length());
+        if (used == chars.length) {
+            chars = Arrays.copyOf(chars, used + (used >> 1));
+        }
+        if (value == '\n') {
+            if (breakCount == breakPositions.length) {
+                breakPositions = Arrays.copyOf(breakPositions, breakCount * 2);
+            }
+            breakPositions[breakCount++] = used;
+        }
+        chars[used++] = value;
+        split(root, offset);
+        Piece left = split[0];
+        Piece right = split[1];
+        if (!extendLast(left, style, value == '\n' ? 1 : 0)) {
+            Piece piece = new Piece(used - 1, 1, style, nextPriority());
+            piece.breaks = value == '\n' ? 1 : 0;
+            piece.lines = piece.breaks;
+            left = merge(left, piece);
+        }
+        root = merge(left, right);
     }
-}
 
-class MushroomTopping extends ToppingDecorator {
-    public MushroomTopping(Pizza pizza) {
-        super(pizza);
+    public void delete(int offset, int count) {
+        checkOffset(offset, length());
+        checkOffset(offset + count, length());
+        if (count <= 0) {
+            return;
+        }
+        split(root, offset);
+        Piece left = split[0];
+        split(split[1], count);
+        root = merge(left, split[1]);
     }
 
-    @Override
-    public String getDescription() {
-        return pizza.getDescription() + ", Mushrooms";
+    public char charAt(int offset) {
+        Piece piece = find(offset);
+        return chars[piece.start + foundOffset];
     }
 
-    @Override
-    public double getCost() {
-        return pizza.getCost() + 1.00;
+    public int styleAt(int offset) {
+        return find(offset).style;
     }
-}
 
-class PepperoniTopping extends ToppingDecorator {
-    public PepperoniTopping(Pizza pizza) {
-        super(pizza);
+    public int lineCount() {
+        return lines(root) + 1;
     }
 
-    @Override
-    public String getDescription() {
-        return pizza.getDescription() + ", Pepperoni";
+    // Returns the number of line breaks before offset.
+    public int lineOf(int offset) {
+        checkOffset(offset, length());
+        int line = 0;
+        Piece node = root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (offset < leftSize) {
+                node = node.left;
+            } else if (offset < leftSize + node.length) {
+                return line + lines(node.left) + countBreaks(node.start, node.start + offset - leftSize);
+            } else {
+                line += lines(node.left) + node.breaks;
+                offset -= leftSize + node.length;
+                node = node.right;
+            }
+        }
+        return line;
     }
 
-    @Override
-    public double getCost() {
-        return pizza.getCost() + 2.00;
+    // Returns the offset of the first character of line.
+    public int lineStart(int line) {
+        if (line < 0 || line >= lineCount()) {
+            throw new IndexOutOfBoundsException("Line " + line + ", line count " + lineCount());
+        }
+        int offset = 0;
+        Piece node = root;
+        while (line > 0) {
+            int leftLines = lines(node.left);
+            if (line <= leftLines) {
+                node = node.left;
+            } else if (line <= leftLines + node.breaks) {
+                int first = lowerBound(node.start);
+                int position = breakPositions[first + line - leftLines - 1];
+                return offset + size(node.left) + position - node.start + 1;
+            } else {
+                line -= leftLines + node.breaks;
+                offset += size(node.left) + node.length;
+                node = node.right;
+            }
+        }
+        return offset;
     }
-}
 
-class PizzaShop {
-    public static void main(String[] args) {
-        Pizza pizza = new MargheritaPizza();
-        pizza = new CheeseTopping(pizza);
-        pizza = new MushroomTopping(pizza);
-        System.out.println("Order: " + pizza.getDescription() + ", Total Cost: " + pizza.getCost());
+    // Height of the treap, which stays O(log runs) whatever the edit pattern.
+    int depth() {
+        return depth(root);
+    }
 
-        Pizza pizza2 = new VegetarianPizza();
-        pizza2 = new PepperoniTopping(pizza2);
-        System.out.println("Order: " + pizza2.getDescription() + ", Total Cost: " + pizza2.getCost());
+    private static int depth(Piece node) {
+        return node == null ? 0 : 1 + Math.max(depth(node.left), depth(node.right));
     }
-}
 
-// Assignment 5: Facade Pattern - Smart Home System
+    public void getChars(int from, int to, char[] dst, int dstBegin) {
+        checkOffset(from, length());
+        checkOffset(to, length());
+        copy(root, from, to, dst, dstBegin);
+    }
 
-class Light {
-    public void turnOn() {
-        System.out.println("Lights are on");
+    @Override
+    public String toString() {
+        char[] text = new char[length()];
+        getChars(0, text.length, text, 0);
+        return new String(text);
     }
 
-    public void turnOff() {
-        System.out.println("Lights are off");
+    private Piece find(int offset) {
+        if (offset < 0 || offset >= length()) {
+            throw new IndexOutOfBoundsException("Offset " + offset + ", length " + length());
+        }
+        Piece node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (offset < leftSize) {
+                node = node.left;
+            } else if (offset < leftSize + node.length) {
+                foundOffset = offset - leftSize;
+                return node;
+            } else {
+                offset -= leftSize + node.length;
+                node = node.right;
+            }
+        }
     }
-}
 
-class Thermostat {
-    public void setTemperature(int temperature) {
-        System.out.println("Temperature set to " + temperature + " degrees");
+    private void copy(Piece node, int from, int to, char[] dst, int dstBegin) {
+        while (node != null && from < to) {
+            int leftSize = size(node.left);
+            if (from < leftSize) {
+                copy(node.left, from, Math.min(to, leftSize), dst, dstBegin);
+                dstBegin += Math.min(to, leftSize) - from;
+                from = leftSize;
+            }
+            int pieceEnd = leftSize + node.length;
+            if (from < to && from < pieceEnd) {
+                int end = Math.min(to, pieceEnd);
+                System.arraycopy(chars, node.start + from - leftSize, dst, dstBegin, end - from);
+                dstBegin += end - from;
+                from = end;
+            }
+            from -= pieceEnd;
+            to -= pieceEnd;
+            node = node.right;
+        }
     }
-}
 
-class SecuritySystem {
-    public void activate() {
-        System.out.println("Security system activated");
+    // Grows the last run when typing continues it, which keeps sequential input at a single piece.
+    private boolean extendLast(Piece node, int style, int breaks) {
+        if (node == null) {
+            return false;
+        }
+        boolean extended;
+        if (node.right != null) {
+            extended = extendLast(node.right, style, breaks);
+        } else {
+            extended = node.style == style && node.start + node.length == used - 1;
+            if (extended) {
+                node.length++;
+                node.breaks += breaks;
+            }
+        }
+        if (extended) {
+            node.size++;
+            node.lines += breaks;
+        }
+        return extended;
     }
 
-    public void deactivate() {
-        System.out.println("Security system deactivated");
+    // Splits node into the first k characters and the rest, leaving them in split[0] and split[1].
+    private void split(Piece node, int k) {
+        if (node == null) {
+            split[0] = null;
+            split[1] = null;
+            return;
+        }
+        int leftSize = size(node.left);
+        if (k <= leftSize) {
+            split(node.left, k);
+            node.left = split[1];
+            update(node);
+            split[1] = node;
+        } else if (k >= leftSize + node.length) {
+            split(node.right, k - leftSize - node.length);
+            node.right = split[0];
+            update(node);
+            split[0] = node;
+        } else {
+            int cut = k - leftSize;
+            // The rest gets its own priority; reusing node's would turn repeated cuts of one run
+            // into a chain of equal priorities that merge cannot balance.
+            Piece rest = new Piece(node.start + cut, node.length - cut, node.style, nextPriority());
+            Piece right = node.right;
+            node.right = null;
+            node.length = cut;
+            rest.breaks = countBreaks(rest.start, rest.start + rest.length);
+            node.breaks -= rest.breaks;
+            update(rest);
+            update(node);
+            split[0] = node;
+            split[1] = merge(rest, right);
+        }
     }
-}
 
-class EntertainmentSystem {
-    public void startMovie() {
-        System.out.println("Starting movie...");
+    private Piece merge(Piece left, Piece right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
     }
 
-    public void stopMovie() {
-        System.out.println("Stopping movie...");
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
     }
-}
 
-class SmartHomeFacade {
-    private Light light;
-    private Thermostat thermostat;
-    private SecuritySystem securitySystem;
-    private EntertainmentSystem entertainmentSystem;
+    private int countBreaks(int from, int to) {
+        return lowerBound(to) - lowerBound(from);
+    }
 
-    public SmartHomeFacade() {
-        light = new Light();
-        thermostat = new Thermostat();
-        securitySystem = new SecuritySystem();
-        entertainmentSystem = new EntertainmentSystem();
+    // Index of the first recorded line break at or after position in the append buffer.
+    private int lowerBound(int position) {
+        int low = 0;
+        int high = breakCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (breakPositions[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
     }
 
-    public void arriveHome() {
-        light.turnOn();
-        thermostat.setTemperature(22);
-        securitySystem.deactivate();
-        System.out.println("Welcome home!");
+    private static void update(Piece node) {
+        node.size = size(node.left) + node.length + size(node.right);
+        node.lines = lines(node.left) + node.breaks + lines(node.right);
     }
 
-    public void leaveHome() {
-        light.turnOff();
-        securitySystem.activate();
-        System.out.println("Goodbye!");
+    private static int size(Piece node) {
+        return node == null ? 0 : node.size;
     }
 
-    public void movieMode() {
-        light.turnOff();
-        entertainmentSystem.startMovie();
-        System.out.println("Movie mode activated.");
+    private static int lines(Piece node) {
+        return node == null ? 0 : node.lines;
     }
-}
 
-class SmartHomeApp {
-    public static void main(String[] args) {
-        SmartHomeFacade smartHome = new SmartHomeFacade();
-        smartHome.arriveHome();
-        smartHome.movieMode();
-        smartHome.leaveHome();
+    private static void checkOffset(int offset, int length) {
+        if (offset < 0 || offset > length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + ", length " + length);
+        }
     }
 }
 
-// Assignment 6: Flyweight Pattern - Character Rendering in a Text Editor
+// Laid-out text of recently rendered lines, in a treap keyed by line number. Line numbers below an
+// edit shift by a lazily applied delta on a whole subtree, so inserting or deleting line breaks
+// costs O(log cached lines) however long the document is. Only `capacity` lines are kept: once
+// the cache holds twice that many, the least recently rendered half is dropped in one sweep.
+class LineLayoutCache {
+    private static final class Node {
+        int line;
+        int shift;
+        char[] layout;
+        long used;
+        final int priority;
+        Node left;
+        Node right;
+
+        Node(int line, char[] layout, long used, int priority) {
+            this.line = line;
+            this.layout = layout;
+            this.used = used;
+            this.priority = priority;
+        }
+    }
 
-class Character {
-    private char value;
-    private String font;
+    private final int capacity;
+    private final Node[] split = new Node[2];
+    private Node root;
     private int size;
+    private long clock;
+    private int seed = 0x6D2B79F5;
 
-    public Character(char value, String font, int size) {
-        this.value = value;
-        this.font = font;
-        this.size = size;
+    LineLayoutCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
     }
 
-    public char getValue() { return value; }
-    public String getFont() { return font; }
-    public int getSize() { return size; }
-}
+    public int size() {
+        return size;
+    }
 
-class CharacterFactory {
-    private Map<Character, Character> characters = new HashMap<>();
+    public char[] get(int line) {
+        Node node = root;
+        while (node != null) {
+            push(node);
+            if (line < node.line) {
+                node = node.left;
+            } else if (line > node.line) {
+                node = node.right;
+            } else {
+                node.used = ++clock;
+                return node.layout;
+            }
+        }
+        return null;
+    }
 
-    public Character getCharacter(char value, String font, int size) {
-        Character character = new Character(value, font, size);
-        if (!characters.containsKey(character)) {
-            characters.put(character, character);
+    public void put(int line, char[] layout) {
+        split(root, line - 1);
+        Node below = split[0];
+        split(split[1], line);
+        if (split[0] == null) {
+            size++;
+        }
+        Node above = split[1];
+        root = merge(merge(below, new Node(line, layout, ++clock, nextPriority())), above);
+        if (size >= capacity * 2) {
+            evict();
+        }
+    }
+
+    // Drops lines first..last and moves every later line up by delta (negative moves it down).
+    public void edit(int first, int last, int delta) {
+        split(root, first - 1);
+        Node below = split[0];
+        split(split[1], last);
+        size -= count(split[0]);
+        Node above = split[1];
+        if (above != null) {
+            above.shift += delta;
+            push(above);
+        }
+        root = merge(below, above);
+    }
+
+    private void evict() {
+        Node[] nodes = new Node[size];
+        int[] count = new int[1];
+        collect(root, nodes, count);
+        long[] used = new long[size];
+        for (int i = 0; i < size; i++) {
+            used[i] = nodes[i].used;
+        }
+        Arrays.sort(used);
+        long cutoff = used[size - capacity];
+        root = null;
+        size = 0;
+        for (Node node : nodes) {
+            if (node.used >= cutoff) {
+                node.left = null;
+                node.right = null;
+                root = merge(root, node);
+                size++;
+            }
+        }
+    }
+
+    private void collect(Node node, Node[] nodes, int[] count) {
+        if (node == null) {
+            return;
+        }
+        push(node);
+        collect(node.left, nodes, count);
+        nodes[count[0]++] = node;
+        collect(node.right, nodes, count);
+    }
+
+    private static int count(Node node) {
+        return node == null ? 0 : 1 + count(node.left) + count(node.right);
+    }
+
+    // Splits node into lines <= line and lines > line, leaving them in split[0] and split[1].
+    private void split(Node node, int line) {
+        if (node == null) {
+            split[0] = null;
+            split[1] = null;
+            return;
+        }
+        push(node);
+        if (node.line <= line) {
+            split(node.right, line);
+            node.right = split[0];
+            split[0] = node;
+        } else {
+            split(node.left, line);
+            node.left = split[1];
+            split[1] = node;
         }
-        return characters.get(character);
+    }
+
+    private Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            push(left);
+            left.right = merge(left.right, right);
+            return left;
+        }
+        push(right);
+        right.left = merge(left, right.left);
+        return right;
+    }
+
+    // Applies a pending shift to node and hands it down to the children.
+    private static void push(Node node) {
+        if (node.shift != 0) {
+            node.line += node.shift;
+            if (node.left != null) {
+                node.left.shift += node.shift;
+            }
+            if (node.right != null) {
+                node.right.shift += node.shift;
+            }
+            node.shift = 0;
+        }
+    }
+
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
     }
 }
 
 class TextEditor {
-    private CharacterFactory characterFactory = new CharacterFactory();
-    private StringBuilder text = new StringBuilder();
+    private CharacterFactory characterFactory;
+    private TextBuffer text = new TextBuffer();
+    static final int CACHED_LINES = 4096;
+
+    // Laid-out paragraphs of recently rendered lines; edits drop the lines they touch.
+    private LineLayoutCache layout = new LineLayoutCache(CACHED_LINES);
+    private Writer console;
+
+    public TextEditor() {
+        this(new CharacterFactory());
+    }
+
+    // Editors on different threads may share one ConcurrentCharacterFactory.
+    public TextEditor(CharacterFactory characterFactory) {
+        this.characterFactory = characterFactory;
+    }
 
     public void insertText(char value, String font, int size) {
-        Character character = characterFactory.getCharacter(value, font, size);
-        text.append(character.getValue());
+        insertText(text.length(), value, font, size);
+    }
+
+    public void insertText(int offset, char value, String font, int size) {
+        int style = characterFactory.getStyleId(font, size);
+        Character character = characterFactory.getCharacter(value, style);
+        int line = text.lineOf(offset);
+        text.insert(offset, character.getValue(), style);
+        layout.edit(line, line, value == '\n' ? 1 : 0);
+    }
+
+    public void deleteText(int offset, int count) {
+        int first = text.lineOf(offset);
+        int last = text.lineOf(offset + count);
+        text.delete(offset, count);
+        layout.edit(first, last, first - last);
+    }
+
+    public Character getCharacter(int offset) {
+        return characterFactory.getCharacter(text.charAt(offset), text.styleAt(offset));
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    public int lineCount() {
+        return text.lineCount();
     }
 
     public void render() {
-        System.out.println("Rendered text: " + text.toString());
+        if (console == null) {
+            console = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        }
+        try {
+            console.write("Rendered text: ");
+            render(console);
+            console.write(System.lineSeparator());
+            console.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void render(Writer out) throws IOException {
+        renderLines(0, lineCount(), out);
+    }
+
+    // Writes lines [from, to); only lines invalidated since the last render are laid out again.
+    public void renderLines(int from, int to, Writer out) throws IOException {
+        for (int line = from; line < to; line++) {
+            char[] paragraph = layout.get(line);
+            if (paragraph == null) {
+                paragraph = layoutLine(line);
+                layout.put(line, paragraph);
+            }
+            if (line > from) {
+                out.write('\n');
+            }
+            out.write(paragraph);
+        }
+    }
+
+    private char[] layoutLine(int line) {
+        int start = text.lineStart(line);
+        int end = line + 1 < lineCount() ? text.lineStart(line + 1) - 1 : text.length();
+        char[] paragraph = new char[end - start];
+        text.getChars(start, end, paragraph, 0);
+        return paragraph;
     }
 }
 
@@ -522,6 +3133,105 @@ class TextEditorApp {
     }
 }
 
+class TextEditorMemoryBenchmark {
+    public static void main(String[] args) {
+        long length = args.length > 0 ? Long.parseLong(args[0]) : 50_000_000L;
+        String[] fonts = {"Arial", "Times New Roman", "Courier New"};
+        int[] sizes = {10, 12, 14};
+
+        long before = usedMemory();
+        TextEditor editor = new TextEditor();
+        for (long i = 0; i < length; i++) {
+            char value = (char) ('a' + (i % 26));
+            editor.insertText(value, fonts[(int) (i / 4096 % fonts.length)], sizes[(int) (i / 1024 % sizes.length)]);
+        }
+        long after = usedMemory();
+
+        System.out.println("Inserted characters: " + length);
+        System.out.printf("Bytes per character: %.3f%n", (double) (after - before) / length);
+        java.lang.ref.Reference.reachabilityFence(editor);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// Edits inside one long run: every delete and insert cuts the same run, which must keep the
+// treap balanced. Checks the text against a StringBuilder and fails if the depth degrades.
+class TextBufferEditTest {
+    public static void main(String[] args) {
+        int length = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int edits = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        Random random = new Random(7);
+        TextBuffer buffer = new TextBuffer();
+        StringBuilder expected = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char value = (char) ('a' + i % 26);
+            buffer.insert(i, value, 0);
+            expected.append(value);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < edits; i++) {
+            int offset = random.nextInt(expected.length());
+            if (i % 2 == 0) {
+                buffer.delete(offset, 1);
+                expected.deleteCharAt(offset);
+            } else {
+                buffer.insert(offset, 'X', 0);
+                expected.insert(offset, 'X');
+            }
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / edits;
+        int depth = buffer.depth();
+        if (!buffer.toString().contentEquals(expected)) {
+            throw new AssertionError("Buffer text differs from the expected text");
+        }
+        if (depth > 100) {
+            throw new AssertionError("Treap depth " + depth + " after " + edits + " edits");
+        }
+        System.out.printf("%,d edits in one run: %.2f us/edit, depth %d%n", edits, micros, depth);
+    }
+}
+
+class CharacterFactoryThroughputBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20_000_000;
+        String[] fonts = {"Arial", "Times New Roman", "Courier New"};
+        int[] sizes = {10, 12, 14, 18};
+
+        // Doubles up to the core count and then measures the core count itself, so 6 runs 1, 2, 4, 6.
+        for (int threads = 1; threads <= maxThreads;
+                threads = threads < maxThreads && threads * 2 > maxThreads ? maxThreads : threads * 2) {
+            CharacterFactory factory = new ConcurrentCharacterFactory();
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                workers[t] = new Thread(() -> {
+                    for (int i = 0; i < lookups; i++) {
+                        int n = i + seed;
+                        factory.getCharacter((char) ('a' + n % 26), fonts[n % fonts.length], sizes[n % sizes.length]);
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d threads: %.1f M lookups/s%n", threads, threads * (double) lookups / seconds / 1e6);
+        }
+    }
+}
+
 // Assignment 7: Proxy Pattern - Online Learning Platform
 
 interface VideoLecture {
@@ -529,16 +3239,97 @@ interface VideoLecture {
     void play();
 }
 
+// Video content is mapped from a local file in fixed-size chunks. Mapping only reserves address
+// space, so opening a lecture costs no I/O and a read faults in just the pages it touches; reads
+// also ask a background thread to fault in the next chunks ahead of playback.
 class RealVideoLecture implements VideoLecture {
+    static final int CHUNK_SIZE = 16 << 20;
+    private static final int READ_AHEAD_CHUNKS = 2;
+    private static final ExecutorService READ_AHEAD = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lecture-read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private String title;
+    private final Path file;
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private long size;
+    private volatile int readAheadFrom = -1;
+    private final AtomicBoolean readAheadQueued = new AtomicBoolean();
 
     public RealVideoLecture(String title) {
+        this(title, null);
+    }
+
+    public RealVideoLecture(String title, Path file) {
         this.title = title;
+        this.file = file;
         loadVideo();
     }
 
     private void loadVideo() {
         System.out.println("Loading video: " + title);
+        if (file == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long position = (long) i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load video " + file, e);
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    // Copies bytes starting at position into dst; returns the count copied, or -1 at end of video.
+    public int read(long position, ByteBuffer dst) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int copied = 0;
+        int chunk = (int) (position / CHUNK_SIZE);
+        while (dst.hasRemaining() && position < size) {
+            chunk = (int) (position / CHUNK_SIZE);
+            int offset = (int) (position % CHUNK_SIZE);
+            int length = Math.min(dst.remaining(), chunks[chunk].limit() - offset);
+            dst.put(dst.position(), chunks[chunk], offset, length);
+            dst.position(dst.position() + length);
+            position += length;
+            copied += length;
+        }
+        readAhead(chunk + 1);
+        return copied;
+    }
+
+    // At most one read-ahead task per lecture is queued. It reads the target when it runs and stops
+    // between chunks once a later read has moved the target, so seeking never piles up stale loads.
+    private void readAhead(int from) {
+        if (from == readAheadFrom) {
+            return;
+        }
+        readAheadFrom = from;
+        if (readAheadQueued.compareAndSet(false, true)) {
+            READ_AHEAD.execute(this::runReadAhead);
+        }
+    }
+
+    private void runReadAhead() {
+        readAheadQueued.set(false);
+        int from = readAheadFrom;
+        for (int i = from; i < Math.min(from + READ_AHEAD_CHUNKS, chunks.length) && readAheadFrom == from; i++) {
+            chunks[i].load();
+        }
     }
 
     @Override
@@ -549,15 +3340,133 @@ class RealVideoLecture implements VideoLecture {
     @Override
     public void play() {
         System.out.println("Playing video: " + title);
+        ByteBuffer frame = ByteBuffer.allocateDirect(1 << 16);
+        long position = 0;
+        for (int n; (n = read(position, frame.clear())) > 0; ) {
+            // Each frame would be handed to the decoder here.
+            position += n;
+        }
+    }
+}
+
+// Bounded LRU cache of loaded lectures shared by proxies. Each title is loaded at most once at a
+// time: the first caller (or a prefetch task) loads it and concurrent callers wait for that load.
+// Only finished loads are evicted, so the cache may briefly hold more than maxLectures entries
+// while loads are in flight; it shrinks back as they complete.
+class LectureCache {
+    private final Map<Key, CompletableFuture<RealVideoLecture>> lectures = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxLectures;
+    private final ExecutorService prefetcher;
+
+    public LectureCache(int maxLectures, int prefetchThreads) {
+        if (maxLectures < 1) {
+            throw new IllegalArgumentException("maxLectures must be positive: " + maxLectures);
+        }
+        this.maxLectures = maxLectures;
+        prefetcher = Executors.newFixedThreadPool(prefetchThreads, runnable -> {
+            Thread thread = new Thread(runnable, "lecture-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public RealVideoLecture get(String title, Supplier<RealVideoLecture> loader) {
+        return get(title, null, loader);
+    }
+
+    // Lectures are cached per (title, file): two files with the same title are different lectures.
+    public RealVideoLecture get(String title, Path file, Supplier<RealVideoLecture> loader) {
+        Key key = new Key(title, file);
+        CompletableFuture<RealVideoLecture> future = new CompletableFuture<>();
+        CompletableFuture<RealVideoLecture> existing = claim(key, future);
+        if (existing != null) {
+            return existing.join();
+        }
+        load(key, future, loader);
+        return future.join();
+    }
+
+    public void prefetch(String title, Supplier<RealVideoLecture> loader) {
+        prefetch(title, null, loader);
+    }
+
+    public void prefetch(String title, Path file, Supplier<RealVideoLecture> loader) {
+        Key key = new Key(title, file);
+        CompletableFuture<RealVideoLecture> future = new CompletableFuture<>();
+        if (claim(key, future) == null) {
+            prefetcher.execute(() -> load(key, future, loader));
+        }
+    }
+
+    public int size() {
+        synchronized (lectures) {
+            return lectures.size();
+        }
+    }
+
+    private CompletableFuture<RealVideoLecture> claim(Key key, CompletableFuture<RealVideoLecture> future) {
+        synchronized (lectures) {
+            CompletableFuture<RealVideoLecture> existing = lectures.get(key);
+            if (existing == null) {
+                lectures.put(key, future);
+                evictCompleted();
+            }
+            return existing;
+        }
+    }
+
+    private void load(Key key, CompletableFuture<RealVideoLecture> future, Supplier<RealVideoLecture> loader) {
+        try {
+            future.complete(loader.get());
+            synchronized (lectures) {
+                evictCompleted();
+            }
+        } catch (Throwable e) {
+            synchronized (lectures) {
+                lectures.remove(key, future);
+            }
+            future.completeExceptionally(e);
+        }
+    }
+
+    // Drops least recently used finished loads until the cache is back within its bound.
+    private void evictCompleted() {
+        Iterator<CompletableFuture<RealVideoLecture>> eldest = lectures.values().iterator();
+        while (lectures.size() > maxLectures && eldest.hasNext()) {
+            if (eldest.next().isDone()) {
+                eldest.remove();
+            }
+        }
+    }
+
+    private record Key(String title, Path file) {
+        Key {
+            file = file == null ? null : file.toAbsolutePath().normalize();
+        }
     }
 }
 
 class ProxyVideoLecture implements VideoLecture {
-    private RealVideoLecture realVideoLecture;
+    private static final LectureCache DEFAULT_CACHE = new LectureCache(16, 2);
+
+    private final LectureCache cache;
+    private final Supplier<RealVideoLecture> loader;
+    private final Path file;
     private String title;
 
     public ProxyVideoLecture(String title) {
+        this(title, DEFAULT_CACHE);
+    }
+
+    public ProxyVideoLecture(String title, LectureCache cache) {
+        this(title, null, cache);
+    }
+
+    public ProxyVideoLecture(String title, Path file, LectureCache cache) {
         this.title = title;
+        this.file = file;
+        this.cache = cache;
+        this.loader = () -> new RealVideoLecture(title, file);
     }
 
     @Override
@@ -567,28 +3476,84 @@ class ProxyVideoLecture implements VideoLecture {
 
     @Override
     public void play() {
-        if (realVideoLecture == null) {
-            realVideoLecture = new RealVideoLecture(title);
-        }
-        realVideoLecture.play();
+        cache.get(title, file, loader).play();
+    }
+
+    public void prefetch() {
+        cache.prefetch(title, file, loader);
     }
 }
 
 class OnlineCourse {
     private List<VideoLecture> lectures = new ArrayList<>();
+    private final int prefetchDepth;
+
+    public OnlineCourse() {
+        this(2);
+    }
+
+    public OnlineCourse(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
 
     public void addLecture(VideoLecture lecture) {
         lectures.add(lecture);
     }
 
     public void playLectures() {
-        for (VideoLecture lecture : lectures) {
+        for (int i = 0; i < lectures.size(); i++) {
+            for (int next = i + 1; next <= i + prefetchDepth && next < lectures.size(); next++) {
+                if (lectures.get(next) instanceof ProxyVideoLecture proxy) {
+                    proxy.prefetch();
+                }
+            }
+            VideoLecture lecture = lectures.get(i);
             System.out.println("Lecture Info: " + lecture.getInfo());
             lecture.play();
         }
     }
 }
 
+class VideoLectureThroughputBenchmark {
+    public static void main(String[] args) throws IOException {
+        long size = args.length > 0 ? Long.parseLong(args[0]) : 2L << 30;
+        int seeks = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        Path file = Files.createTempFile("lecture", ".bin");
+        try {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer block = ByteBuffer.allocateDirect(1 << 20);
+                for (long written = 0; written < size; ) {
+                    block.clear().limit((int) Math.min(block.capacity(), size - written));
+                    written += channel.write(block);
+                }
+            }
+
+            long start = System.nanoTime();
+            RealVideoLecture lecture = new RealVideoLecture("benchmark", file);
+            System.out.printf("Open: %.2f ms%n", (System.nanoTime() - start) / 1e6);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            start = System.nanoTime();
+            long total = 0;
+            for (int n; (n = lecture.read(total, buffer.clear())) > 0; ) {
+                total += n;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Sequential read: %d MB at %.0f MB/s%n", total >> 20, total / seconds / (1 << 20));
+
+            Random random = new Random(42);
+            ByteBuffer frame = ByteBuffer.allocateDirect(64 << 10);
+            start = System.nanoTime();
+            for (int i = 0; i < seeks; i++) {
+                lecture.read((long) (random.nextDouble() * size), frame.clear());
+            }
+            System.out.printf("Random seek + 64 KB read: %.1f us avg%n", (System.nanoTime() - start) / 1e3 / seeks);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
+
 class LearningPlatformApp {
     public static void main(String[] args) {
         OnlineCourse course = new OnlineCourse();
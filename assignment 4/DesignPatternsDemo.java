@@ -1,4 +1,14 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.stream.*;
+import java.util.zip.*;
 
 // 1. Strategy Pattern: Payment Processing System
 interface PaymentStrategy {
@@ -28,18 +38,420 @@ interface WeatherDisplay {
     void update(float temp, float humidity, float pressure);
 }
 
+// Without a ring the station notifies displays on the caller's thread; with one, updates are
+// published to the ring and each display is fed by its own thread.
 class WeatherStation {
-    private List<WeatherDisplay> displays = new ArrayList<>();
-    public void addDisplay(WeatherDisplay display) { displays.add(display); }
+    private List<WeatherDisplay> displays = new CopyOnWriteArrayList<>();
+    private final WeatherEventRing ring;
+    WeatherStation() { this.ring = null; }
+    WeatherStation(int capacity, BackpressurePolicy policy) { this.ring = new WeatherEventRing(capacity, policy); }
+    public void addDisplay(WeatherDisplay display) { if (ring == null) displays.add(display); else ring.subscribe(display); }
     public void updateWeather(float temp, float humidity, float pressure) {
+        if (ring != null) { ring.publish(temp, humidity, pressure); return; }
         for (WeatherDisplay display : displays) display.update(temp, humidity, pressure);
     }
+    public void close() { if (ring != null) ring.close(); }
+}
+
+// What a ring does when a display falls behind. BLOCK makes producers wait for the slowest display.
+// DROP_OLDEST lets a display that fell a whole ring behind skip to the oldest reading still held.
+// CONFLATE is lossy by design: a display always jumps to the newest reading, so under a fast
+// producer it may see only a few percent of the updates, and it suits only displays that care
+// about the latest value alone.
+enum BackpressurePolicy { BLOCK, DROP_OLDEST, CONFLATE }
+
+// Preallocated single-ring event bus. Readings live in primitive slots; each slot also records the
+// sequence written to it, which readers check before and after copying so an overwritten slot is
+// detected instead of delivered. Producers claim sequences with an atomic increment and publish
+// them in order; the subscriber array is swapped with a CAS, so neither publishing nor subscribing
+// takes a lock, and a BLOCK producer waiting for room holds nothing a subscriber needs. An idle
+// subscriber parks until a publish unparks it, so a quiet station costs no wakeups.
+class WeatherEventRing {
+    private final int mask;
+    private final BackpressurePolicy policy;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray readings;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong published = new AtomicLong(-1);
+    private final AtomicReference<Subscriber[]> subscribers = new AtomicReference<>(new Subscriber[0]);
+    private volatile boolean running = true;
+
+    WeatherEventRing(int capacity, BackpressurePolicy policy) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        this.mask = capacity - 1;
+        this.policy = policy;
+        this.sequences = new AtomicLongArray(capacity);
+        this.readings = new AtomicLongArray(capacity * 2);
+        for (int i = 0; i < capacity; i++) sequences.set(i, -1);
+    }
+
+    public void publish(float temp, float humidity, float pressure) {
+        long sequence = claimed.getAndIncrement();
+        // The previous writer of this slot must be done, or two producers could interleave in it.
+        // Waits on other producers yield rather than spin, since the one awaited may be descheduled.
+        while (published.get() < sequence - mask - 1) Thread.yield();
+        if (policy == BackpressurePolicy.BLOCK) {
+            while (running && sequence - slowestCursor(sequence) > mask) LockSupport.parkNanos(10_000);
+        }
+        int slot = (int) sequence & mask;
+        sequences.set(slot, -1);
+        readings.set(slot * 2, (long) Float.floatToRawIntBits(temp) << 32 | Float.floatToRawIntBits(humidity) & 0xFFFFFFFFL);
+        readings.set(slot * 2 + 1, Float.floatToRawIntBits(pressure));
+        sequences.set(slot, sequence);
+        while (published.get() != sequence - 1) Thread.yield();
+        published.set(sequence);
+        for (Subscriber subscriber : subscribers.get()) {
+            if (subscriber.parked) LockSupport.unpark(subscriber.thread);
+        }
+    }
+
+    public void subscribe(WeatherDisplay display) {
+        Subscriber subscriber = new Subscriber(display, published.get() + 1);
+        Thread thread = new Thread(subscriber::run, "weather-display");
+        thread.setDaemon(true);
+        subscriber.thread = thread;
+        Subscriber[] current, next;
+        do {
+            current = subscribers.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[next.length - 1] = subscriber;
+        } while (!subscribers.compareAndSet(current, next));
+        thread.start();
+    }
+
+    public void close() {
+        running = false;
+        for (Subscriber subscriber : subscribers.get()) LockSupport.unpark(subscriber.thread);
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        Subscriber[] current, next;
+        do {
+            current = subscribers.get();
+            next = Arrays.stream(current).filter(s -> s != subscriber).toArray(Subscriber[]::new);
+        } while (!subscribers.compareAndSet(current, next));
+    }
+
+    private long slowestCursor(long fallback) {
+        long slowest = fallback;
+        for (Subscriber subscriber : subscribers.get()) slowest = Math.min(slowest, subscriber.cursor);
+        return slowest;
+    }
+
+    // A display that throws skips that reading and keeps its place; if its thread dies anyway, the
+    // subscriber is removed so a BLOCK producer never waits on a cursor that will not move.
+    private class Subscriber {
+        private final WeatherDisplay display;
+        Thread thread;
+        volatile boolean parked;
+        volatile long cursor;
+        volatile long dropped;
+        volatile long failed;
+        Subscriber(WeatherDisplay display, long cursor) { this.display = display; this.cursor = cursor; }
+
+        void run() {
+            try {
+                while (running) {
+                    long available = published.get();
+                    long next = cursor;
+                    if (next > available) { awaitPublish(next); continue; }
+                    if (policy == BackpressurePolicy.CONFLATE) next = available;
+                    else if (available - next > mask) next = available - mask;
+                    int slot = (int) next & mask;
+                    long first = sequences.get(slot);
+                    long tempAndHumidity = readings.get(slot * 2);
+                    long pressure = readings.get(slot * 2 + 1);
+                    if (first != next || sequences.get(slot) != next) {
+                        dropped += Math.max(1, published.get() - mask - next);
+                        cursor = Math.max(next + 1, published.get() - mask);
+                        continue;
+                    }
+                    dropped += next - cursor;
+                    try {
+                        display.update(Float.intBitsToFloat((int) (tempAndHumidity >>> 32)), Float.intBitsToFloat((int) tempAndHumidity), Float.intBitsToFloat((int) pressure));
+                    } catch (RuntimeException e) {
+                        failed++;
+                    }
+                    cursor = next + 1;
+                }
+            } finally {
+                unsubscribe(this);
+            }
+        }
+
+        // parked is set before published is re-read and read after published is set, so either
+        // this check sees the new sequence or the publisher sees the flag and unparks.
+        private void awaitPublish(long next) {
+            parked = true;
+            if (running && published.get() < next) LockSupport.park(this);
+            parked = false;
+        }
+    }
 }
 
 class CurrentConditionsDisplay implements WeatherDisplay {
     public void update(float temp, float humidity, float pressure) { System.out.println("Current conditions: " + temp + "C"); }
 }
 
+enum WeatherMetric { TEMPERATURE, HUMIDITY, PRESSURE }
+
+interface ReadingVisitor {
+    void visit(long timeMillis, float value);
+}
+
+// In-memory time-series store for a station. It is itself a display, so station.addDisplay(history)
+// records every reading. Readings land in fixed-size columnar chunks (a long column of timestamps and
+// a float column per metric). With a spill file, each sealed chunk is copied into a memory-mapped
+// region and its heap arrays dropped, so only the open chunk stays on the heap. Rolling windows and
+// downsampled series are fed as readings arrive; dashboards read those instead of scanning chunks.
+class WeatherHistory implements WeatherDisplay, Closeable {
+    static final int CHUNK_SIZE = 4096;
+    private static final int METRICS = WeatherMetric.values().length;
+    private static final long CHUNK_BYTES = (long) CHUNK_SIZE * (Long.BYTES + METRICS * Float.BYTES);
+
+    private final List<ReadingChunk> chunks = new ArrayList<>();
+    private final List<RollingWindow> windows = new CopyOnWriteArrayList<>();
+    private final List<DownsampledSeries> series = new CopyOnWriteArrayList<>();
+    private final FileChannel spill;
+    private long lastTime = Long.MIN_VALUE;
+    private long size;
+
+    WeatherHistory() { this.spill = null; chunks.add(new ReadingChunk()); }
+    WeatherHistory(Path spillFile) throws IOException {
+        this.spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        chunks.add(new ReadingChunk());
+    }
+
+    public void update(float temp, float humidity, float pressure) { append(System.currentTimeMillis(), temp, humidity, pressure); }
+
+    public synchronized void append(long timeMillis, float temp, float humidity, float pressure) {
+        if (timeMillis < lastTime) throw new IllegalArgumentException("Readings must arrive in time order: " + timeMillis + " < " + lastTime);
+        lastTime = timeMillis;
+        ReadingChunk open = chunks.get(chunks.size() - 1);
+        open.add(timeMillis, temp, humidity, pressure);
+        if (open.size == CHUNK_SIZE) {
+            if (spill != null) open.spill(spill, (chunks.size() - 1) * CHUNK_BYTES);
+            chunks.add(new ReadingChunk());
+        }
+        size++;
+        for (RollingWindow window : windows) window.add(timeMillis, value(window.metric, temp, humidity, pressure));
+        for (DownsampledSeries downsampled : series) downsampled.add(timeMillis, value(downsampled.metric, temp, humidity, pressure));
+    }
+
+    public synchronized long size() { return size; }
+
+    // Registers a window over the last windowMillis of readings, seeded from the stored history.
+    public synchronized RollingWindow rollingWindow(WeatherMetric metric, long windowMillis) {
+        RollingWindow window = new RollingWindow(metric, windowMillis);
+        scan(metric, lastTime - windowMillis + 1, lastTime, window::add);
+        windows.add(window);
+        return window;
+    }
+
+    // Registers a series of fixed-width buckets keeping the most recent `buckets` of them.
+    public synchronized DownsampledSeries downsample(WeatherMetric metric, long bucketMillis, int buckets) {
+        DownsampledSeries downsampled = new DownsampledSeries(metric, bucketMillis, buckets);
+        scan(metric, lastTime - bucketMillis * buckets + 1, lastTime, downsampled::add);
+        series.add(downsampled);
+        return downsampled;
+    }
+
+    // Visits the raw readings with fromMillis <= time <= toMillis, oldest first.
+    public synchronized void scan(WeatherMetric metric, long fromMillis, long toMillis, ReadingVisitor visitor) {
+        int low = 0, high = chunks.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            ReadingChunk chunk = chunks.get(mid);
+            // Strictly before fromMillis: readings may share a timestamp across a chunk boundary, and
+            // the ones at the end of the earlier chunk must not be skipped.
+            if (chunk.size > 0 && chunk.time(0) < fromMillis) low = mid; else high = mid - 1;
+        }
+        for (int c = low; c < chunks.size(); c++) {
+            ReadingChunk chunk = chunks.get(c);
+            for (int i = 0; i < chunk.size; i++) {
+                long time = chunk.time(i);
+                if (time > toMillis) return;
+                if (time >= fromMillis) visitor.visit(time, chunk.value(metric, i));
+            }
+        }
+    }
+
+    public void close() throws IOException { if (spill != null) spill.close(); }
+
+    private static float value(WeatherMetric metric, float temp, float humidity, float pressure) {
+        switch (metric) {
+            case TEMPERATURE: return temp;
+            case HUMIDITY: return humidity;
+            default: return pressure;
+        }
+    }
+
+    // Column layout, on the heap and in the spill file alike: CHUNK_SIZE timestamps, then one block
+    // of CHUNK_SIZE floats per metric in WeatherMetric order.
+    private static class ReadingChunk {
+        private long[] times = new long[CHUNK_SIZE];
+        private float[] values = new float[CHUNK_SIZE * METRICS];
+        private MappedByteBuffer mapped;
+        int size;
+
+        void add(long timeMillis, float temp, float humidity, float pressure) {
+            times[size] = timeMillis;
+            values[size] = temp;
+            values[CHUNK_SIZE + size] = humidity;
+            values[2 * CHUNK_SIZE + size] = pressure;
+            size++;
+        }
+
+        long time(int i) { return mapped == null ? times[i] : mapped.getLong(i * Long.BYTES); }
+
+        float value(WeatherMetric metric, int i) {
+            int index = metric.ordinal() * CHUNK_SIZE + i;
+            return mapped == null ? values[index] : mapped.getFloat(CHUNK_SIZE * Long.BYTES + index * Float.BYTES);
+        }
+
+        void spill(FileChannel channel, long position) {
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK_BYTES);
+                buffer.asLongBuffer().put(times);
+                buffer.position(CHUNK_SIZE * Long.BYTES);
+                buffer.asFloatBuffer().put(values);
+                buffer.clear();
+                mapped = buffer;
+                times = null;
+                values = null;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not spill weather readings", e);
+            }
+        }
+    }
+}
+
+// Readings sharing one timestamp across a chunk boundary: a scan from that timestamp, and the
+// windows seeded from it, must see every one of them.
+class WeatherHistoryScanTest {
+    public static void main(String[] args) {
+        WeatherHistory history = new WeatherHistory();
+        int before = WeatherHistory.CHUNK_SIZE - 6;
+        for (int i = 0; i < before; i++) history.append(i, 1, 1, 1);
+        for (int i = 0; i < 20; i++) history.append(before, 2, 2, 2);
+        long[] seen = new long[1];
+        history.scan(WeatherMetric.TEMPERATURE, before, before, (time, value) -> seen[0]++);
+        if (seen[0] != 20) throw new AssertionError("Scan returned " + seen[0] + " of 20 equal-timestamp readings");
+        RollingWindow window = history.rollingWindow(WeatherMetric.TEMPERATURE, 1);
+        if (window.count() != 20) throw new AssertionError("Window seeded with " + window.count() + " of 20 readings");
+        DownsampledSeries series = history.downsample(WeatherMetric.TEMPERATURE, 1, 1);
+        if (series.count(0) != 20) throw new AssertionError("Bucket seeded with " + series.count(0) + " of 20 readings");
+        System.out.println("Equal timestamps across a chunk boundary: all 20 readings scanned");
+    }
+}
+
+// Sliding-window min, max and mean of one metric over the readings within windowMillis of the
+// newest one. Samples sit in a primitive ring; min and max are monotonic deques of ring sequence
+// numbers, so each add is amortized O(1) and every query is O(1).
+class RollingWindow {
+    final WeatherMetric metric;
+    private final long windowMillis;
+    private long[] times = new long[64];
+    private float[] values = new float[64];
+    private long[] minQueue = new long[64], maxQueue = new long[64];
+    private int mask = 63;
+    private long head, tail, minHead, minTail, maxHead, maxTail;
+    private double sum;
+
+    RollingWindow(WeatherMetric metric, long windowMillis) {
+        if (windowMillis <= 0) throw new IllegalArgumentException("Window must be positive: " + windowMillis);
+        this.metric = metric;
+        this.windowMillis = windowMillis;
+    }
+
+    synchronized void add(long timeMillis, float value) {
+        while (head < tail && times[(int) head & mask] <= timeMillis - windowMillis) {
+            sum -= values[(int) head & mask];
+            if (minHead < minTail && minQueue[(int) minHead & mask] == head) minHead++;
+            if (maxHead < maxTail && maxQueue[(int) maxHead & mask] == head) maxHead++;
+            head++;
+        }
+        if (tail - head > mask) grow();
+        times[(int) tail & mask] = timeMillis;
+        values[(int) tail & mask] = value;
+        sum += value;
+        while (minTail > minHead && values[(int) minQueue[(int) (minTail - 1) & mask] & mask] >= value) minTail--;
+        minQueue[(int) minTail++ & mask] = tail;
+        while (maxTail > maxHead && values[(int) maxQueue[(int) (maxTail - 1) & mask] & mask] <= value) maxTail--;
+        maxQueue[(int) maxTail++ & mask] = tail;
+        tail++;
+    }
+
+    public synchronized int count() { return (int) (tail - head); }
+    public synchronized float min() { return head == tail ? Float.NaN : values[(int) minQueue[(int) minHead & mask] & mask]; }
+    public synchronized float max() { return head == tail ? Float.NaN : values[(int) maxQueue[(int) maxHead & mask] & mask]; }
+    public synchronized double mean() { return head == tail ? Double.NaN : sum / (tail - head); }
+
+    private void grow() {
+        int newMask = mask * 2 + 1;
+        long[] newTimes = new long[newMask + 1], newMin = new long[newMask + 1], newMax = new long[newMask + 1];
+        float[] newValues = new float[newMask + 1];
+        for (long s = head; s < tail; s++) { newTimes[(int) s & newMask] = times[(int) s & mask]; newValues[(int) s & newMask] = values[(int) s & mask]; }
+        for (long s = minHead; s < minTail; s++) newMin[(int) s & newMask] = minQueue[(int) s & mask];
+        for (long s = maxHead; s < maxTail; s++) newMax[(int) s & newMask] = maxQueue[(int) s & mask];
+        times = newTimes; values = newValues; minQueue = newMin; maxQueue = newMax; mask = newMask;
+    }
+}
+
+// Fixed-width buckets of one metric (min, max, sum, count), holding the most recent `capacity`
+// buckets in a ring. Buckets with no readings are not materialized; start(i) tells where each one is.
+class DownsampledSeries {
+    final WeatherMetric metric;
+    private final long bucketMillis;
+    private final long[] starts;
+    private final float[] mins, maxs;
+    private final double[] sums;
+    private final int[] counts;
+    private long first, end;
+
+    DownsampledSeries(WeatherMetric metric, long bucketMillis, int capacity) {
+        if (bucketMillis <= 0 || capacity <= 0) throw new IllegalArgumentException("Bucket width and capacity must be positive");
+        this.metric = metric;
+        this.bucketMillis = bucketMillis;
+        this.starts = new long[capacity];
+        this.mins = new float[capacity];
+        this.maxs = new float[capacity];
+        this.sums = new double[capacity];
+        this.counts = new int[capacity];
+    }
+
+    synchronized void add(long timeMillis, float value) {
+        long start = Math.floorDiv(timeMillis, bucketMillis) * bucketMillis;
+        int slot = (int) ((end - 1) % starts.length);
+        if (end == first || starts[slot] != start) {
+            slot = (int) (end++ % starts.length);
+            if (end - first > starts.length) first++;
+            starts[slot] = start;
+            mins[slot] = value;
+            maxs[slot] = value;
+            sums[slot] = 0;
+            counts[slot] = 0;
+        }
+        mins[slot] = Math.min(mins[slot], value);
+        maxs[slot] = Math.max(maxs[slot], value);
+        sums[slot] += value;
+        counts[slot]++;
+    }
+
+    // Bucket accessors take i from 0 (oldest retained bucket) to size() - 1 (newest).
+    public synchronized int size() { return (int) (end - first); }
+    public synchronized long start(int i) { return starts[slot(i)]; }
+    public synchronized float min(int i) { return mins[slot(i)]; }
+    public synchronized float max(int i) { return maxs[slot(i)]; }
+    public synchronized double mean(int i) { return sums[slot(i)] / counts[slot(i)]; }
+    public synchronized int count(int i) { return counts[slot(i)]; }
+
+    private int slot(int i) {
+        if (i < 0 || i >= end - first) throw new IndexOutOfBoundsException("Bucket " + i + " of " + (end - first));
+        return (int) ((first + i) % starts.length);
+    }
+}
+
 // 3. Command Pattern: Remote Control for Smart Home Devices
 interface Command {
     void execute();
@@ -70,41 +482,543 @@ interface OrderState {
     void next(Order order);
 }
 
+// The state classes hold no per-order data, so each has one shared instance and a transition
+// never allocates.
 class NewOrder implements OrderState {
-    public void next(Order order) { order.setState(new PaidOrder()); System.out.println("Order is paid."); }
+    static final NewOrder INSTANCE = new NewOrder();
+    public void next(Order order) { order.setState(PaidOrder.INSTANCE); System.out.println("Order is paid."); }
 }
 
 class PaidOrder implements OrderState {
-    public void next(Order order) { order.setState(new ShippedOrder()); System.out.println("Order is shipped."); }
+    static final PaidOrder INSTANCE = new PaidOrder();
+    public void next(Order order) { order.setState(ShippedOrder.INSTANCE); System.out.println("Order is shipped."); }
 }
 
 class ShippedOrder implements OrderState {
-    public void next(Order order) { order.setState(new DeliveredOrder()); System.out.println("Order is delivered."); }
+    static final ShippedOrder INSTANCE = new ShippedOrder();
+    public void next(Order order) { order.setState(DeliveredOrder.INSTANCE); System.out.println("Order is delivered."); }
 }
 
 class DeliveredOrder implements OrderState {
+    static final DeliveredOrder INSTANCE = new DeliveredOrder();
     public void next(Order order) { System.out.println("Order is completed."); }
 }
 
+// Silent, table-driven form of the same lifecycle. TRANSITIONS[stage] is the stage that follows
+// it, with DELIVERED leading to itself; OrderBatch applies the same table to one byte per order.
+enum OrderStage implements OrderState {
+    NEW, PAID, SHIPPED, DELIVERED;
+
+    static final OrderStage[] VALUES = values();
+    static final byte[] TRANSITIONS = {1, 2, 3, 3};
+
+    public void next(Order order) { order.setState(VALUES[TRANSITIONS[ordinal()]]); }
+
+    static OrderStage of(OrderState state) {
+        if (state instanceof OrderStage) return (OrderStage) state;
+        if (state instanceof NewOrder) return NEW;
+        if (state instanceof PaidOrder) return PAID;
+        if (state instanceof ShippedOrder) return SHIPPED;
+        if (state instanceof DeliveredOrder) return DELIVERED;
+        throw new IllegalArgumentException("Unknown order state: " + state);
+    }
+}
+
 class Order {
-    private OrderState state = new NewOrder();
+    private OrderState state = NewOrder.INSTANCE;
+    Order() { }
+    Order(OrderState state) { this.state = state; }
     public void setState(OrderState state) { this.state = state; }
+    public OrderState getState() { return state; }
     public void next() { state.next(this); }
 }
 
+// Columnar store of order stages, one byte per order, advanced through OrderStage.TRANSITIONS.
+class OrderBatch {
+    private static final int PARALLEL_CHUNK = 1 << 16;
+
+    private final byte[] stages;
+
+    OrderBatch(int orders) { stages = new byte[orders]; }
+    OrderBatch(byte[] stages) { this.stages = stages; }
+
+    public int size() { return stages.length; }
+    public OrderStage stage(int order) { return OrderStage.VALUES[stages[order]]; }
+    public void setStage(int order, OrderStage stage) { stages[order] = (byte) stage.ordinal(); }
+    public void next(int order) { stages[order] = OrderStage.TRANSITIONS[stages[order]]; }
+    public Order toOrder(int order) { return new Order(stage(order)); }
+    public byte[] copyStages() { return stages.clone(); }
+
+    public void advance(int from, int to) {
+        byte[] transitions = OrderStage.TRANSITIONS;
+        for (int i = from; i < to; i++) stages[i] = transitions[stages[i]];
+    }
+
+    public void advanceAll() { advance(0, stages.length); }
+
+    // Same result as advanceAll; each chunk of orders is advanced on the common pool.
+    public void advanceAllParallel() {
+        int chunks = (stages.length + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> advance(chunk * PARALLEL_CHUNK, Math.min(stages.length, (chunk + 1) * PARALLEL_CHUNK)));
+    }
+
+    public int[] countByStage() {
+        int[] counts = new int[OrderStage.VALUES.length];
+        for (byte stage : stages) counts[stage]++;
+        return counts;
+    }
+}
+
+// An Order whose transitions are recorded in an OrderJournal under its id.
+class JournaledOrder extends Order {
+    private final OrderJournal journal;
+    private final int id;
+    JournaledOrder(OrderJournal journal, int id) { super(journal.stage(id)); this.journal = journal; this.id = id; }
+    public void setState(OrderState state) { super.setState(state); journal.record(id, OrderStage.of(state)); }
+}
+
+// Event-sourced store of every order's stage. Each transition is a 5-byte event (int order id,
+// byte stage) appended to an in-memory buffer; a flusher thread swaps in the spare buffer, writes the
+// full one to the current log file and forces it, so one fsync covers every event since the last
+// one. snapshot() rolls to a new log generation, writes every stage to orders-<generation>.snapshot
+// and deletes older files; opening the directory loads the newest snapshot and replays only the
+// logs from its generation on. Events carry the absolute stage, so a torn tail is simply dropped.
+class OrderJournal implements Closeable {
+    private static final int EVENT_BYTES = Integer.BYTES + 1;
+    private static final int SNAPSHOT_MAGIC = 0x4F524453;
+
+    private final Path directory;
+    private final OrderBatch orders;
+    private final long flushMillis;
+    private final ReentrantLock ioLock = new ReentrantLock();
+    private final Thread flusher;
+    private ByteBuffer active, spare;
+    private FileChannel log;
+    private long generation, appended, durable;
+    private IOException failure;
+    private boolean open = true;
+
+    OrderJournal(Path directory, int orders) throws IOException { this(directory, orders, 5, 1 << 20); }
+    OrderJournal(Path directory, int orders, long flushMillis, int bufferBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.flushMillis = flushMillis;
+        this.active = ByteBuffer.allocateDirect(bufferBytes);
+        this.spare = ByteBuffer.allocateDirect(bufferBytes);
+        long snapshotGeneration = -1, lastGeneration = -1;
+        byte[] stages = new byte[orders];
+        for (long candidate : generations(".snapshot")) {
+            if (candidate > snapshotGeneration && readSnapshot(candidate, stages)) snapshotGeneration = candidate;
+        }
+        for (long logGeneration : generations(".log")) {
+            lastGeneration = Math.max(lastGeneration, logGeneration);
+            if (logGeneration >= snapshotGeneration) replay(logGeneration, stages);
+        }
+        this.orders = new OrderBatch(stages);
+        this.generation = Math.max(lastGeneration, snapshotGeneration) + 1;
+        this.log = openLog(generation);
+        this.flusher = new Thread(this::flushLoop, "order-journal-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public int size() { return orders.size(); }
+    public synchronized OrderStage stage(int id) { return orders.stage(id); }
+    public synchronized int[] countByStage() { return orders.countByStage(); }
+    public JournaledOrder order(int id) { return new JournaledOrder(this, id); }
+
+    public synchronized void next(int id) { record(id, OrderStage.VALUES[OrderStage.TRANSITIONS[orders.stage(id).ordinal()]]); }
+
+    public synchronized void record(int id, OrderStage stage) {
+        if (!open) throw new IllegalStateException("Journal is closed");
+        checkFailure();
+        while (active.remaining() < EVENT_BYTES) {
+            notifyAll();
+            awaitQuietly();
+            checkFailure();
+        }
+        orders.setStage(id, stage);
+        active.putInt(id).put((byte) stage.ordinal());
+        appended++;
+    }
+
+    // Blocks until every event recorded so far has been forced to disk.
+    public synchronized void sync() {
+        long target = appended;
+        notifyAll();
+        while (durable < target && open) {
+            checkFailure();
+            awaitQuietly();
+        }
+        checkFailure();
+    }
+
+    public void snapshot() throws IOException {
+        byte[] stages;
+        long snapshotGeneration;
+        ioLock.lock();
+        try {
+            synchronized (this) {
+                checkFailure();
+                active.flip();
+                write(active);
+                active.clear();
+                log.close();
+                snapshotGeneration = ++generation;
+                log = openLog(snapshotGeneration);
+                stages = orders.copyStages();
+                durable = appended;
+                notifyAll();
+            }
+        } finally {
+            ioLock.unlock();
+        }
+        Path temporary = directory.resolve("orders.snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2).putInt(SNAPSHOT_MAGIC).putInt(stages.length).flip();
+            ByteBuffer body = ByteBuffer.wrap(stages);
+            ByteBuffer footer = ByteBuffer.allocate(Integer.BYTES).putInt(SNAPSHOT_MAGIC).flip();
+            while (header.hasRemaining() || body.hasRemaining() || footer.hasRemaining()) channel.write(new ByteBuffer[] {header, body, footer});
+            channel.force(true);
+        }
+        Files.move(temporary, file(snapshotGeneration, ".snapshot"), StandardCopyOption.ATOMIC_MOVE);
+        for (long old : generations(".snapshot")) if (old < snapshotGeneration) Files.deleteIfExists(file(old, ".snapshot"));
+        for (long old : generations(".log")) if (old < snapshotGeneration) Files.deleteIfExists(file(old, ".log"));
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            open = false;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+        synchronized (this) {
+            if (failure != null) throw new IOException("Order journal failed to write", failure);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (this) {
+                if (active.position() == 0) {
+                    if (!open) return;
+                    awaitQuietly(flushMillis);
+                }
+            }
+            ioLock.lock();
+            try {
+                ByteBuffer full;
+                long covered;
+                synchronized (this) {
+                    if (active.position() == 0) continue;
+                    full = active;
+                    active = spare;
+                    spare = null;
+                    covered = appended;
+                }
+                full.flip();
+                write(full);
+                synchronized (this) {
+                    full.clear();
+                    spare = full;
+                    durable = Math.max(durable, covered);
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            } finally {
+                ioLock.unlock();
+            }
+        }
+    }
+
+    private void write(ByteBuffer events) throws IOException {
+        while (events.hasRemaining()) log.write(events);
+        log.force(false);
+    }
+
+    // Once the flusher has failed, nothing more can be made durable: callers get the failure
+    // instead of waiting for a flush that will never come.
+    private void checkFailure() {
+        if (failure != null) throw new UncheckedIOException("Order journal failed to write", failure);
+    }
+
+    private void awaitQuietly() { awaitQuietly(0); }
+
+    private void awaitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the order journal", e);
+        }
+    }
+
+    private boolean readSnapshot(long snapshotGeneration, byte[] stages) throws IOException {
+        try (FileChannel channel = FileChannel.open(file(snapshotGeneration, ".snapshot"), StandardOpenOption.READ)) {
+            if (channel.size() < Integer.BYTES * 3) return false;
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2);
+            readFully(channel, header, 0);
+            int count = header.getInt(Integer.BYTES);
+            if (header.getInt(0) != SNAPSHOT_MAGIC || channel.size() != Integer.BYTES * 3L + count) return false;
+            ByteBuffer footer = ByteBuffer.allocate(Integer.BYTES);
+            readFully(channel, footer, channel.size() - Integer.BYTES);
+            if (footer.getInt(0) != SNAPSHOT_MAGIC) return false;
+            Arrays.fill(stages, (byte) 0);
+            readFully(channel, ByteBuffer.wrap(stages, 0, Math.min(count, stages.length)), Integer.BYTES * 2);
+            return true;
+        }
+    }
+
+    private void replay(long logGeneration, byte[] stages) throws IOException {
+        try (FileChannel channel = FileChannel.open(file(logGeneration, ".log"), StandardOpenOption.READ)) {
+            ByteBuffer events = ByteBuffer.allocateDirect(EVENT_BYTES * 64 * 1024);
+            long position = 0, end = channel.size() / EVENT_BYTES * EVENT_BYTES;
+            while (position < end) {
+                events.clear().limit((int) Math.min(events.capacity(), end - position));
+                readFully(channel, events, position);
+                position += events.limit();
+                for (int i = 0; i < events.limit(); i += EVENT_BYTES) {
+                    int id = events.getInt(i);
+                    if (id >= 0 && id < stages.length) stages[id] = events.get(i + Integer.BYTES);
+                }
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Order journal file is truncated");
+        }
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        return FileChannel.open(file(logGeneration, ".log"), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path file(long fileGeneration, String suffix) { return directory.resolve(String.format("orders-%020d%s", fileGeneration, suffix)); }
+
+    private List<Long> generations(String suffix) throws IOException {
+        List<Long> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "orders-*" + suffix)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                found.add(Long.parseLong(name.substring("orders-".length(), name.length() - suffix.length())));
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+}
+
+class OrderJournalBenchmark {
+    public static void main(String[] args) throws IOException {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Path directory = Files.createTempDirectory("order-journal");
+        OrderJournal journal = new OrderJournal(directory, orders);
+        long start = System.nanoTime();
+        for (int id = 0; id < orders; id++) journal.next(id);
+        double nextNanos = (double) (System.nanoTime() - start) / orders;
+        journal.snapshot();
+        start = System.nanoTime();
+        for (int step = 0; step < 2; step++) for (int id = 0; id < orders; id++) journal.next(id);
+        double tailNanos = (double) (System.nanoTime() - start) / (2.0 * orders);
+        journal.sync();
+        journal.close();
+
+        start = System.nanoTime();
+        try (OrderJournal recovered = new OrderJournal(directory, orders)) {
+            double recoveryMillis = (System.nanoTime() - start) / 1e6;
+            if (recovered.countByStage()[OrderStage.DELIVERED.ordinal()] != orders) throw new IllegalStateException("Recovery lost transitions");
+            System.out.printf("%,d orders: next() %.0f ns before snapshot, %.0f ns after; recovered snapshot + %,d events in %.0f ms%n",
+                    orders, nextNanos, tailNanos, 2L * orders, recoveryMillis);
+        }
+    }
+}
+
+// JMH is not available in this tree, so this follows the other benchmarks here: a warm-up round,
+// then several timed rounds of each mode.
+class OrderStateBenchmark {
+    public static void main(String[] args) {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Order[] objects = new Order[orders];
+        OrderBatch batch = new OrderBatch(orders);
+        for (int round = 0; round < 6; round++) {
+            for (int i = 0; i < orders; i++) objects[i] = new Order(OrderStage.NEW);
+            for (int i = 0; i < orders; i++) batch.setStage(i, OrderStage.NEW);
+            long start = System.nanoTime();
+            for (int step = 0; step < 3; step++) for (Order order : objects) order.next();
+            long objectNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int step = 0; step < 3; step++) batch.advanceAll();
+            long batchNanos = System.nanoTime() - start;
+            for (int i = 0; i < orders; i++) batch.setStage(i, OrderStage.NEW);
+            start = System.nanoTime();
+            for (int step = 0; step < 3; step++) batch.advanceAllParallel();
+            long parallelNanos = System.nanoTime() - start;
+            if (round == 0) continue;
+            if (batch.countByStage()[OrderStage.DELIVERED.ordinal()] != orders || objects[orders - 1].getState() != OrderStage.DELIVERED) {
+                throw new IllegalStateException("Engines disagree");
+            }
+            System.out.printf("%,d orders x 3 transitions: Order objects %.1f ns, batch %.2f ns, parallel batch %.2f ns per transition%n",
+                    orders, objectNanos / 3.0 / orders, batchNanos / 3.0 / orders, parallelNanos / 3.0 / orders);
+        }
+    }
+}
+
 // 5. Chain of Responsibility: Expense Approval System
+// Each approver approves amounts below its limit and passes anything else on; an amount that runs
+// off the end of the chain is reported instead of failing on a missing successor.
 abstract class Approver {
     protected Approver next;
     public void setNext(Approver next) { this.next = next; }
+    public Approver getNext() { return next; }
+    public abstract double getLimit();
     public abstract void approveExpense(double amount);
+    protected void passOn(double amount) { if (next != null) next.approveExpense(amount); else ApprovalRouter.reject(amount); }
 }
 
 class Manager extends Approver {
-    public void approveExpense(double amount) { if (amount < 1000) System.out.println("Manager approves"); else next.approveExpense(amount); }
+    public double getLimit() { return 1000; }
+    public void approveExpense(double amount) { if (amount < getLimit()) System.out.println("Manager approves"); else passOn(amount); }
 }
 
 class Director extends Approver {
-    public void approveExpense(double amount) { if (amount < 5000) System.out.println("Director approves"); else next.approveExpense(amount); }
+    public double getLimit() { return 5000; }
+    public void approveExpense(double amount) { if (amount < getLimit()) System.out.println("Director approves"); else passOn(amount); }
+}
+
+// A configured chain compiled into ascending upper bounds. Walking the chain, an approver only
+// sees amounts at or above every earlier limit, so it owns [highest earlier limit, its own limit)
+// and is dropped when that range is empty. route() then finds the owner by binary search, and
+// assign() does the same for whole batches. Amounts no approver owns, including NaN, get
+// NO_APPROVER, matching the linked chain's rejection.
+class ApprovalRouter {
+    static final int NO_APPROVER = -1;
+    private static final int PARALLEL_CHUNK = 1 << 16;
+
+    private final Approver[] approvers;
+    private final double[] bounds;
+
+    ApprovalRouter(Approver head) {
+        List<Approver> owners = new ArrayList<>();
+        List<Double> limits = new ArrayList<>();
+        Set<Approver> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        double highest = Double.NEGATIVE_INFINITY;
+        for (Approver approver = head; approver != null; approver = approver.getNext()) {
+            if (!seen.add(approver)) throw new IllegalArgumentException("Approver chain contains a cycle");
+            double limit = approver.getLimit();
+            if (limit > highest) {
+                owners.add(approver);
+                limits.add(limit);
+                highest = limit;
+            }
+        }
+        approvers = owners.toArray(new Approver[0]);
+        bounds = new double[limits.size()];
+        for (int i = 0; i < bounds.length; i++) bounds[i] = limits.get(i);
+    }
+
+    static void reject(double amount) { System.out.println("No approver for expense of " + amount); }
+
+    public List<Approver> getApprovers() { return List.of(approvers); }
+
+    public void approveExpense(double amount) {
+        int index = index(amount);
+        if (index == NO_APPROVER) reject(amount); else approvers[index].approveExpense(amount);
+    }
+
+    public Approver route(double amount) {
+        int index = index(amount);
+        return index == NO_APPROVER ? null : approvers[index];
+    }
+
+    // Index into getApprovers() for every amount, or NO_APPROVER.
+    public int[] assign(double[] amounts) {
+        int[] assignments = new int[amounts.length];
+        assign(amounts, assignments, 0, amounts.length);
+        return assignments;
+    }
+
+    // Same results as assign; chunks of amounts are routed on the common pool.
+    public int[] assignParallel(double[] amounts) {
+        int[] assignments = new int[amounts.length];
+        int chunks = (amounts.length + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> assign(amounts, assignments, chunk * PARALLEL_CHUNK, Math.min(amounts.length, (chunk + 1) * PARALLEL_CHUNK)));
+        return assignments;
+    }
+
+    private void assign(double[] amounts, int[] assignments, int from, int to) {
+        for (int i = from; i < to; i++) assignments[i] = index(amounts[i]);
+    }
+
+    // First bound the amount is below. The search halves a fixed-length window and picks the half
+    // with a conditional move rather than a branch, since batch amounts are unpredictable. Every
+    // comparison is false for NaN, which therefore falls through to NO_APPROVER.
+    private int index(double amount) {
+        double[] bounds = this.bounds;
+        if (bounds.length == 0) return NO_APPROVER;
+        int base = 0, length = bounds.length;
+        while (length > 1) {
+            int half = length >>> 1;
+            base = bounds[base + half - 1] <= amount ? base + half : base;
+            length -= half;
+        }
+        int index = bounds[base] <= amount ? base + 1 : base;
+        return index < bounds.length && amount < bounds[index] ? index : NO_APPROVER;
+    }
+}
+
+class ApprovalRouterBenchmark {
+    public static void main(String[] args) {
+        int expenses = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Approver head = null;
+        for (int level = 20; level > 0; level--) {
+            double limit = level * 1000;
+            Approver approver = new Approver() {
+                public double getLimit() { return limit; }
+                public void approveExpense(double amount) { if (amount >= getLimit()) passOn(amount); }
+            };
+            approver.setNext(head);
+            head = approver;
+        }
+        Random random = new Random(42);
+        double[] amounts = new double[expenses];
+        for (int i = 0; i < expenses; i++) amounts[i] = random.nextDouble() * 21_000;
+        ApprovalRouter router = new ApprovalRouter(head);
+        List<Approver> approvers = router.getApprovers();
+
+        for (int round = 0; round < 4; round++) {
+            long start = System.nanoTime();
+            Approver[] chained = new Approver[expenses];
+            for (int i = 0; i < expenses; i++) {
+                Approver approver = head;
+                while (approver != null && !(amounts[i] < approver.getLimit())) approver = approver.getNext();
+                chained[i] = approver;
+            }
+            long chainNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            int[] batch = router.assign(amounts);
+            long batchNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            int[] parallel = router.assignParallel(amounts);
+            long parallelNanos = System.nanoTime() - start;
+            for (int i = 0; i < expenses; i++) {
+                Approver routed = batch[i] == ApprovalRouter.NO_APPROVER ? null : approvers.get(batch[i]);
+                if (routed != chained[i] || batch[i] != parallel[i]) throw new IllegalStateException("Router disagrees with the chain at " + amounts[i]);
+            }
+            System.out.printf("%,d expenses, 20 levels: chain %.1f ns, router %.1f ns, parallel router %.1f ns per expense%n",
+                    expenses, (double) chainNanos / expenses, (double) batchNanos / expenses, (double) parallelNanos / expenses);
+        }
+    }
 }
 
 // 6. Mediator Pattern: Chat Room Application
@@ -112,11 +1026,30 @@ interface ChatMediator {
     void sendMessage(String msg, User user);
 }
 
+// With a journal every message is logged before delivery, and the room remembers the last offset
+// delivered to each user name so a reconnecting user is replayed only what it missed.
 class ChatRoom implements ChatMediator {
-    private List<User> users = new ArrayList<>();
+    private List<User> users = new CopyOnWriteArrayList<>();
+    private final ChatJournal journal;
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    ChatRoom() { this.journal = null; }
+    ChatRoom(ChatJournal journal) { this.journal = journal; }
     public void addUser(User user) { users.add(user); }
+    public void removeUser(User user) { users.remove(user); }
     public void sendMessage(String msg, User user) {
-        for (User u : users) if (u != user) u.receive(msg);
+        if (journal == null) { for (User u : users) if (u != user) u.receive(msg); return; }
+        synchronized (this) {
+            long offset = journal.append(user.name, msg);
+            for (User u : users) if (u != user) { u.receive(msg); lastSeen.put(u.name, offset); }
+        }
+    }
+    public void reconnect(User user) { Long seen = lastSeen.get(user.name); reconnect(user, seen == null ? 0 : seen + 1); }
+    public synchronized void reconnect(User user, long fromOffset) {
+        if (journal == null) throw new IllegalStateException("Replay needs a ChatRoom with a journal");
+        journal.replay(fromOffset, (offset, sender, text) -> {
+            if (!sender.equals(user.name)) { user.receive(text); lastSeen.put(user.name, offset); }
+        });
+        if (!users.contains(user)) users.add(user);
     }
 }
 
@@ -134,6 +1067,507 @@ class RegularUser extends User {
     public void receive(String msg) { System.out.println(name + " receives: " + msg); }
 }
 
+// One chat message as it travels through ChatShards: a single immutable instance is handed to
+// every recipient's mailbox, so fan-out never copies the text.
+final class ChatMessage {
+    final ShardedChatRoom room;
+    final User sender;
+    final String text;
+    final long sentNanos;
+    ChatMessage(ShardedChatRoom room, User sender, String text) { this.room = room; this.sender = sender; this.text = text; this.sentNanos = System.nanoTime(); }
+}
+
+// Scalable mediator. Rooms are hashed onto one delivery thread per shard (a core each by default),
+// so sending only enqueues on the room's shard. A shard drains messages in batches and, member by
+// member, offers the whole batch to each user's bounded mailbox. Each mailbox is drained by its own
+// virtual thread, which hands batches to User.receive; a full mailbox drops and counts the message
+// instead of stalling the shard and everyone else in the room.
+class ChatShards implements AutoCloseable {
+    private final Shard[] shards;
+    private final int mailboxCapacity;
+    private final int batchSize;
+    private final ChatDeliveryStats stats;
+    private final Map<String, ShardedChatRoom> rooms = new ConcurrentHashMap<>();
+
+    ChatShards() { this(Runtime.getRuntime().availableProcessors(), 1024, 64, new ChatDeliveryStats()); }
+    ChatShards(int shardCount, int mailboxCapacity, int batchSize, ChatDeliveryStats stats) {
+        if (shardCount <= 0 || mailboxCapacity <= 0 || batchSize <= 0) throw new IllegalArgumentException("Shard count, mailbox capacity and batch size must be positive");
+        this.mailboxCapacity = mailboxCapacity;
+        this.batchSize = batchSize;
+        this.stats = stats;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) shards[i] = new Shard(i);
+    }
+
+    public ShardedChatRoom room(String name) {
+        return rooms.computeIfAbsent(name, n -> new ShardedChatRoom(this, n, shards[Math.floorMod(n.hashCode(), shards.length)]));
+    }
+
+    public ChatDeliveryStats stats() { return stats; }
+
+    public void close() {
+        for (Shard shard : shards) shard.thread.interrupt();
+        for (ShardedChatRoom room : rooms.values()) for (Mailbox mailbox : room.mailboxes) mailbox.thread.interrupt();
+    }
+
+    Mailbox mailbox(User user) { return new Mailbox(user); }
+
+    class Shard {
+        final BlockingQueue<ChatMessage> queue = new ArrayBlockingQueue<>(64 * 1024);
+        final Thread thread;
+
+        Shard(int index) {
+            thread = new Thread(this::run, "chat-shard-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void run() {
+            List<ChatMessage> batch = new ArrayList<>(batchSize);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, batchSize - 1);
+                    int from = 0;
+                    while (from < batch.size()) {
+                        ShardedChatRoom room = batch.get(from).room;
+                        int to = from + 1;
+                        while (to < batch.size() && batch.get(to).room == room) to++;
+                        for (Mailbox mailbox : room.mailboxes) {
+                            for (int i = from; i < to; i++) if (batch.get(i).sender != mailbox.user) mailbox.offer(batch.get(i));
+                        }
+                        from = to;
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    class Mailbox {
+        final User user;
+        final BlockingQueue<ChatMessage> queue = new ArrayBlockingQueue<>(mailboxCapacity);
+        final Thread thread;
+
+        Mailbox(User user) {
+            this.user = user;
+            this.thread = Thread.ofVirtual().name("chat-mailbox").start(this::run);
+        }
+
+        void offer(ChatMessage message) { if (!queue.offer(message)) stats.dropped.increment(); }
+
+        private void run() {
+            List<ChatMessage> batch = new ArrayList<>(batchSize);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, batchSize - 1);
+                    for (ChatMessage message : batch) {
+                        user.receive(message.text);
+                        stats.record(System.nanoTime() - message.sentNanos);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+// A room in ChatShards. Members are an array replaced on join and leave, so the shard thread walks
+// a stable snapshot without locking.
+class ShardedChatRoom implements ChatMediator {
+    private final ChatShards owner;
+    private final String name;
+    private final ChatShards.Shard shard;
+    volatile ChatShards.Mailbox[] mailboxes = new ChatShards.Mailbox[0];
+
+    ShardedChatRoom(ChatShards owner, String name, ChatShards.Shard shard) { this.owner = owner; this.name = name; this.shard = shard; }
+
+    public String getName() { return name; }
+    public int size() { return mailboxes.length; }
+
+    public synchronized void addUser(User user) {
+        ChatShards.Mailbox[] next = Arrays.copyOf(mailboxes, mailboxes.length + 1);
+        next[next.length - 1] = owner.mailbox(user);
+        mailboxes = next;
+    }
+
+    public synchronized void removeUser(User user) {
+        List<ChatShards.Mailbox> next = new ArrayList<>(Arrays.asList(mailboxes));
+        next.removeIf(mailbox -> {
+            if (mailbox.user != user) return false;
+            mailbox.thread.interrupt();
+            return true;
+        });
+        mailboxes = next.toArray(new ChatShards.Mailbox[0]);
+    }
+
+    public void sendMessage(String msg, User user) {
+        try {
+            shard.queue.put(new ChatMessage(this, user, msg));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Delivery counters and a log-linear latency histogram: 16 linear sub-buckets per power of two, so
+// a reported percentile is within about 6% of the true value.
+class ChatDeliveryStats {
+    final LongAdder delivered = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(960);
+
+    void record(long latencyNanos) {
+        delivered.increment();
+        latencyBuckets.incrementAndGet(bucket(Math.max(0, latencyNanos)));
+    }
+
+    public long delivered() { return delivered.sum(); }
+    public long dropped() { return dropped.sum(); }
+
+    public long percentileNanos(double percentile) {
+        long total = 0;
+        for (int i = 0; i < latencyBuckets.length(); i++) total += latencyBuckets.get(i);
+        long rank = (long) Math.ceil(total * percentile / 100), seen = 0;
+        for (int i = 0; i < latencyBuckets.length(); i++) {
+            seen += latencyBuckets.get(i);
+            if (seen >= rank && seen > 0) return upperBound(i);
+        }
+        return 0;
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < 16) return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return (exponent - 3) * 16 + (int) ((nanos >>> (exponent - 4)) & 15);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 16) return bucket;
+        int exponent = bucket / 16 + 3;
+        return ((17L + bucket % 16) << (exponent - 4)) - 1;
+    }
+}
+
+class ChatShardsBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int messagesPerSender = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        for (int roomSize : new int[] {100, 1_000, 10_000}) {
+            for (int senders : new int[] {1, 4, 16}) {
+                ChatDeliveryStats stats = new ChatDeliveryStats();
+                try (ChatShards shards = new ChatShards(Runtime.getRuntime().availableProcessors(), 4096, 64, stats)) {
+                    ShardedChatRoom room = shards.room("bench");
+                    User[] users = new User[roomSize];
+                    for (int u = 0; u < roomSize; u++) {
+                        users[u] = new User(room, "user" + u) {
+                            public void send(String msg) { mediator.sendMessage(msg, this); }
+                            public void receive(String msg) { }
+                        };
+                        room.addUser(users[u]);
+                    }
+                    long expected = (long) senders * messagesPerSender * (roomSize - 1);
+                    long start = System.nanoTime();
+                    Thread[] threads = new Thread[senders];
+                    for (int s = 0; s < senders; s++) {
+                        User sender = users[s];
+                        threads[s] = new Thread(() -> { for (int m = 0; m < messagesPerSender; m++) sender.send("message " + m); });
+                        threads[s].start();
+                    }
+                    for (Thread thread : threads) thread.join();
+                    while (stats.delivered() + stats.dropped() < expected) Thread.sleep(1);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("room %,d, %d senders: %,.0f messages/s, %,.0f deliveries/s, p99 %.2f ms, %,d dropped%n",
+                            roomSize, senders, senders * messagesPerSender / seconds, stats.delivered() / seconds,
+                            stats.percentileNanos(99) / 1e6, stats.dropped());
+                }
+            }
+        }
+    }
+}
+
+interface JournalVisitor {
+    void visit(long offset, String sender, String text);
+}
+
+// Append-only message log on local disk. Messages are numbered from 0 and written through
+// memory-mapped segment files named by the offset of their first message; a segment is
+// preallocated, so a zero length marks its end and reopening the directory resumes after the last
+// complete record. Record layout: int body length, CRC32 of the body, then the body: short sender
+// length, sender and text in UTF-8. Reopening stops at the first record whose checksum does not
+// match, zeroes the rest of that segment and deletes any later segments, so a torn or corrupted
+// write truncates the log there instead of being replayed.
+// Appends only copy into the mapping; a flusher thread forces dirty segments every flushMillis, so
+// one fsync covers every append made since the previous one (group commit) and sync(offset) waits
+// for the flush that covers it. Each segment keeps the position of every INDEX_INTERVAL-th record,
+// so replay seeks to within INDEX_INTERVAL records of any offset. Segments hold only their mapping,
+// not a file descriptor, and at most maxSegments are retained: rolling past that deletes the oldest
+// segment, and replay from an offset it held starts at the oldest message still retained.
+class ChatJournal implements Closeable {
+    static final int INDEX_INTERVAL = 128;
+    private static final int RECORD_PREFIX = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER = RECORD_PREFIX + Short.BYTES;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long flushMillis;
+    private final int maxSegments;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Set<Segment> dirty = new LinkedHashSet<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Condition flushed = flushLock.newCondition();
+    private final Thread flusher;
+    private final CRC32 checksum = new CRC32();
+    private volatile long nextOffset;
+    private volatile long durableOffset;
+    private volatile boolean open = true;
+
+    ChatJournal(Path directory) throws IOException { this(directory, 64 << 20, 2, 16); }
+    ChatJournal(Path directory, int segmentBytes, long flushMillis, int maxSegments) throws IOException {
+        if (maxSegments < 1) throw new IllegalArgumentException("maxSegments must be positive: " + maxSegments);
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.flushMillis = flushMillis;
+        this.maxSegments = maxSegments;
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : stream) files.add(file);
+        }
+        files.sort(Comparator.naturalOrder());
+        boolean truncated = false;
+        for (Path file : files) {
+            if (truncated) { Files.delete(file); continue; }
+            long base = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+            Segment segment = new Segment(file, base);
+            truncated = !segment.recover();
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) segments.add(new Segment(segmentFile(0), 0));
+        retain();
+        Segment last = segments.get(segments.size() - 1);
+        nextOffset = last.base + last.count;
+        durableOffset = nextOffset;
+        flusher = new Thread(this::flushLoop, "chat-journal-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public synchronized long append(String sender, String text) {
+        if (!open) throw new IllegalStateException("Journal is closed");
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Short.BYTES + senderBytes.length + textBytes.length;
+        if (senderBytes.length > Short.MAX_VALUE || RECORD_PREFIX + length > segmentBytes) throw new IllegalArgumentException("Message does not fit in a journal segment");
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.position + RECORD_PREFIX + length > segmentBytes) segment = roll();
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.position;
+        buffer.putShort(position + RECORD_PREFIX, (short) senderBytes.length);
+        buffer.put(position + RECORD_HEADER, senderBytes);
+        buffer.put(position + RECORD_HEADER + senderBytes.length, textBytes);
+        checksum.reset();
+        checksum.update(buffer.slice(position + RECORD_PREFIX, length));
+        buffer.putInt(position + Integer.BYTES, (int) checksum.getValue());
+        buffer.putInt(position, length);
+        segment.added(position + RECORD_PREFIX + length);
+        flushLock.lock();
+        try {
+            dirty.add(segment);
+        } finally {
+            flushLock.unlock();
+        }
+        return nextOffset++;
+    }
+
+    public long nextOffset() { return nextOffset; }
+
+    // Blocks until the message at offset has been forced to disk.
+    public void sync(long offset) throws InterruptedException {
+        flushLock.lock();
+        try {
+            while (durableOffset <= offset && open) flushed.await();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // Visits every message from fromOffset up to the end of the log as it stood when replay began.
+    public void replay(long fromOffset, JournalVisitor visitor) {
+        long end = nextOffset;
+        Segment[] retained = segments.toArray(new Segment[0]);
+        long offset = Math.max(retained[0].base, fromOffset);
+        int first = 0, last = retained.length - 1;
+        while (first < last) {
+            int mid = (first + last + 1) >>> 1;
+            if (retained[mid].base <= offset) first = mid; else last = mid - 1;
+        }
+        for (int s = first; s < retained.length && offset < end; s++) {
+            Segment segment = retained[s];
+            int skip = (int) (offset - segment.base);
+            int position = segment.index[skip / INDEX_INTERVAL];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            for (long o = segment.base + skip / INDEX_INTERVAL * INDEX_INTERVAL; o < end && o < segment.base + segment.count; o++) {
+                int length = buffer.getInt(position);
+                if (o >= offset) {
+                    int senderLength = buffer.getShort(position + RECORD_PREFIX);
+                    byte[] senderBytes = new byte[senderLength];
+                    byte[] textBytes = new byte[length - Short.BYTES - senderLength];
+                    buffer.get(position + RECORD_HEADER, senderBytes);
+                    buffer.get(position + RECORD_HEADER + senderLength, textBytes);
+                    visitor.visit(o, new String(senderBytes, StandardCharsets.UTF_8), new String(textBytes, StandardCharsets.UTF_8));
+                }
+                position += RECORD_PREFIX + length;
+            }
+            offset = segment.base + segment.count;
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (this) { open = false; }
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private Segment roll() {
+        try {
+            Segment segment = new Segment(segmentFile(nextOffset), nextOffset);
+            segments.add(segment);
+            retain();
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not roll journal segment", e);
+        }
+    }
+
+    // Deletes the oldest segments beyond maxSegments; their mappings are released once no replay
+    // still reads them.
+    private void retain() throws IOException {
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            flushLock.lock();
+            try {
+                if (dirty.remove(oldest)) oldest.buffer.force();
+            } finally {
+                flushLock.unlock();
+            }
+            Files.deleteIfExists(segmentFile(oldest.base));
+        }
+    }
+
+    private Path segmentFile(long base) { return directory.resolve(String.format("%020d.log", base)); }
+
+    private void flushLoop() {
+        while (open) {
+            try {
+                Thread.sleep(flushMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+
+    private void flush() {
+        List<Segment> pending;
+        long covered;
+        synchronized (this) {
+            covered = nextOffset;
+        }
+        flushLock.lock();
+        try {
+            pending = new ArrayList<>(dirty);
+            dirty.clear();
+        } finally {
+            flushLock.unlock();
+        }
+        for (Segment segment : pending) segment.buffer.force();
+        flushLock.lock();
+        try {
+            durableOffset = Math.max(durableOffset, covered);
+            flushed.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private class Segment {
+        final long base;
+        final MappedByteBuffer buffer;
+        int[] index = new int[16];
+        volatile int count;
+        int position;
+
+        Segment(Path file, long base) throws IOException {
+            this.base = base;
+            // The mapping stays valid after the channel is closed, so no descriptor is held.
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+        }
+
+        void added(int end) {
+            if (count % INDEX_INTERVAL == 0) {
+                if (count / INDEX_INTERVAL == index.length) index = Arrays.copyOf(index, index.length * 2);
+                index[count / INDEX_INTERVAL] = position;
+            }
+            position = end;
+            count++;
+        }
+
+        // Returns false if it stopped at a damaged record rather than at the end of the log; the
+        // rest of the segment is then zeroed so stale records behind it never come back.
+        boolean recover() {
+            CRC32 crc = new CRC32();
+            while (position + RECORD_HEADER <= segmentBytes) {
+                int length = buffer.getInt(position);
+                if (length == 0) return true;
+                if (length < Short.BYTES || position + RECORD_PREFIX + length > segmentBytes) break;
+                crc.reset();
+                crc.update(buffer.slice(position + RECORD_PREFIX, length));
+                if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) break;
+                int senderLength = buffer.getShort(position + RECORD_PREFIX);
+                if (senderLength < 0 || senderLength > length - Short.BYTES) break;
+                added(position + RECORD_PREFIX + length);
+            }
+            if (position + RECORD_HEADER > segmentBytes) return true;
+            for (int i = position; i < segmentBytes; i++) buffer.put(i, (byte) 0);
+            buffer.force();
+            return false;
+        }
+    }
+}
+
+class ChatJournalBenchmark {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        Path directory = Files.createTempDirectory("chat-journal");
+        try (ChatJournal journal = new ChatJournal(directory)) {
+            long start = System.nanoTime();
+            long last = 0;
+            for (int i = 0; i < messages; i++) last = journal.append("user" + (i & 1023), "message " + i);
+            double appendSeconds = (System.nanoTime() - start) / 1e9;
+            journal.sync(last);
+            double durableSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            long[] replayed = new long[1];
+            journal.replay(messages - 100_000, (offset, sender, text) -> replayed[0]++);
+            double replayMillis = (System.nanoTime() - start) / 1e6;
+            System.out.printf("%,d appends: %,.0f appends/s, durable after %.2f s; replayed last %,d in %.1f ms%n",
+                    messages, messages / appendSeconds, durableSeconds, replayed[0], replayMillis);
+        }
+    }
+}
+
 // 7. Memento Pattern: Document Version Control System
 class Document {
     private String content;
@@ -149,10 +1583,230 @@ class DocumentMemento {
     public String getContent() { return content; }
 }
 
-class VersionControl {
+// Without a store every version is a full memento; with one, versions go to a DeltaVersionStore,
+// whose spill file and zlib state are released by close().
+class VersionControl implements Closeable {
     private List<DocumentMemento> versions = new ArrayList<>();
-    public void saveVersion(Document doc) { versions.add(doc.save()); }
-    public void restoreVersion(Document doc, int index) { doc.restore(versions.get(index)); }
+    private final DeltaVersionStore store;
+    VersionControl() { this.store = null; }
+    VersionControl(int snapshotInterval, boolean compress) { this.store = new DeltaVersionStore(snapshotInterval, compress); }
+    VersionControl(int snapshotInterval, boolean compress, Path spillFile, int versionsInMemory) throws IOException { this.store = new DeltaVersionStore(snapshotInterval, compress, spillFile, versionsInMemory); }
+    public void saveVersion(Document doc) { if (store == null) versions.add(doc.save()); else store.add(doc.getContent()); }
+    public void restoreVersion(Document doc, int index) { doc.restore(store == null ? versions.get(index) : new DocumentMemento(store.get(index))); }
+    public int size() { return store == null ? versions.size() : store.size(); }
+    public void close() throws IOException { if (store != null) store.close(); }
+}
+
+// Version history as a full snapshot every snapshotInterval versions and a delta from the previous
+// version in between. A delta is the edited region only: the lengths of the prefix and suffix kept
+// from the previous version and the UTF-16 chars that replaced the middle. Entries are optionally
+// deflated when that makes them smaller, and with a spill file all but the newest versionsInMemory
+// entries live on disk. Restoring reads one snapshot and at most snapshotInterval - 1 deltas.
+// Storing chars rather than UTF-8 keeps any String intact, unpaired surrogates included, and lets
+// a delta split a surrogate pair.
+//
+// Entry layout: flags byte (SNAPSHOT, COMPRESSED, NULL_CONTENT), then for a compressed entry the
+// inflated length and the deflated bytes, otherwise the snapshot text, or prefix length, suffix
+// length and inserted text for a delta.
+class DeltaVersionStore implements Closeable {
+    private static final int SNAPSHOT = 1, COMPRESSED = 2, NULL_CONTENT = 4;
+
+    private final int snapshotInterval;
+    private final boolean compress;
+    private final FileChannel spill;
+    private final int versionsInMemory;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[][] entries = new byte[16][];
+    private long[] spillOffsets = new long[16];
+    private int[] spillLengths = new int[16];
+    private int size, spilled;
+    private long spillEnd;
+    private String latest;
+
+    DeltaVersionStore(int snapshotInterval, boolean compress) { this(snapshotInterval, compress, (FileChannel) null, Integer.MAX_VALUE); }
+    DeltaVersionStore(int snapshotInterval, boolean compress, FileChannel spill, int versionsInMemory) {
+        if (snapshotInterval <= 0 || versionsInMemory <= 0) throw new IllegalArgumentException("Snapshot interval and in-memory versions must be positive");
+        this.snapshotInterval = snapshotInterval;
+        this.compress = compress;
+        this.versionsInMemory = versionsInMemory;
+        this.spill = spill;
+    }
+    DeltaVersionStore(int snapshotInterval, boolean compress, Path spillFile, int versionsInMemory) throws IOException {
+        this(snapshotInterval, compress, FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), versionsInMemory);
+    }
+
+    public synchronized void add(String content) {
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+            spillOffsets = Arrays.copyOf(spillOffsets, size * 2);
+            spillLengths = Arrays.copyOf(spillLengths, size * 2);
+        }
+        int flags = content == null ? NULL_CONTENT : 0;
+        String text = content == null ? "" : content;
+        byte[] entry;
+        if (size % snapshotInterval == 0) {
+            entry = encode(flags | SNAPSHOT, 0, 0, text);
+        } else {
+            String previous = latest == null ? "" : latest;
+            int limit = Math.min(previous.length(), text.length());
+            int prefix = 0;
+            while (prefix < limit && previous.charAt(prefix) == text.charAt(prefix)) prefix++;
+            int suffix = 0;
+            while (suffix < limit - prefix && previous.charAt(previous.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix)) suffix++;
+            entry = encode(flags, prefix, suffix, text.substring(prefix, text.length() - suffix));
+        }
+        entries[size++] = entry;
+        latest = content;
+        while (spill != null && size - spilled > versionsInMemory) spillOldest();
+    }
+
+    public synchronized String get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Version " + index + " of " + size);
+        if (index == size - 1) return latest;
+        StringBuilder content = new StringBuilder();
+        boolean isNull = false;
+        for (int i = index - index % snapshotInterval; i <= index; i++) {
+            ByteBuffer entry = ByteBuffer.wrap(read(i));
+            int flags = entry.get();
+            if ((flags & COMPRESSED) != 0) entry = ByteBuffer.wrap(inflate(entry));
+            isNull = (flags & NULL_CONTENT) != 0;
+            if ((flags & SNAPSHOT) != 0) {
+                content.setLength(0);
+                content.append(entry.asCharBuffer());
+            } else {
+                int prefix = entry.getInt(), suffix = entry.getInt();
+                content.replace(prefix, content.length() - suffix, entry.asCharBuffer().toString());
+            }
+        }
+        return isNull ? null : content.toString();
+    }
+
+    public synchronized int size() { return size; }
+
+    public void close() throws IOException {
+        deflater.end();
+        inflater.end();
+        if (spill != null) spill.close();
+    }
+
+    private byte[] encode(int flags, int prefix, int suffix, String text) {
+        boolean snapshot = (flags & SNAPSHOT) != 0;
+        ByteBuffer body = ByteBuffer.allocate(text.length() * Character.BYTES + (snapshot ? 0 : 2 * Integer.BYTES));
+        if (!snapshot) body.putInt(prefix).putInt(suffix);
+        body.asCharBuffer().put(text);
+        byte[] raw = body.array();
+        if (compress && raw.length > 64) {
+            byte[] deflated = deflate(raw);
+            if (deflated.length + Integer.BYTES < raw.length) {
+                return ByteBuffer.allocate(1 + Integer.BYTES + deflated.length).put((byte) (flags | COMPRESSED)).putInt(raw.length).put(deflated).array();
+            }
+        }
+        return ByteBuffer.allocate(1 + raw.length).put((byte) flags).put(raw).array();
+    }
+
+    private byte[] deflate(byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+        byte[] chunk = new byte[64 * 1024];
+        while (!deflater.finished()) out.write(chunk, 0, deflater.deflate(chunk));
+        return out.toByteArray();
+    }
+
+    private byte[] inflate(ByteBuffer entry) {
+        byte[] raw = new byte[entry.getInt()];
+        inflater.reset();
+        inflater.setInput(entry.array(), entry.position(), entry.remaining());
+        try {
+            int filled = 0;
+            while (filled < raw.length) filled += inflater.inflate(raw, filled, raw.length - filled);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt version entry", e);
+        }
+        return raw;
+    }
+
+    private byte[] read(int index) {
+        if (index >= spilled) return entries[index];
+        byte[] entry = new byte[spillLengths[index]];
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(entry);
+            while (buffer.hasRemaining()) {
+                if (spill.read(buffer, spillOffsets[index] + buffer.position()) < 0) throw new EOFException("Version " + index + " is truncated");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read version " + index, e);
+        }
+        return entry;
+    }
+
+    private void spillOldest() {
+        byte[] entry = entries[spilled];
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(entry);
+            while (buffer.hasRemaining()) spill.write(buffer, spillEnd + buffer.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not spill version " + spilled, e);
+        }
+        spillOffsets[spilled] = spillEnd;
+        spillLengths[spilled] = entry.length;
+        spillEnd += entry.length;
+        entries[spilled++] = null;
+    }
+}
+
+// Lone surrogates in saved versions, as snapshots and as the edges of deltas, must restore
+// char for char.
+class DeltaVersionStoreSurrogateTest {
+    public static void main(String[] args) throws IOException {
+        String[] versions = {"note \uD83D", "note \uD83D\uDE00 done", "\uDE00 note \uD83D\uDE00 done", "\uDE00 note \uDE00", "\uD800\uD800"};
+        for (boolean compress : new boolean[] {false, true}) {
+            try (DeltaVersionStore store = new DeltaVersionStore(3, compress)) {
+                for (String version : versions) store.add(version);
+                store.add("end");
+                for (int i = 0; i < versions.length; i++) {
+                    if (!versions[i].equals(store.get(i))) throw new AssertionError("Version " + i + " restored as " + store.get(i));
+                }
+            }
+        }
+        System.out.println("Lone surrogates survive snapshots and deltas");
+    }
+}
+
+class VersionControlBenchmark {
+    public static void main(String[] args) throws IOException {
+        int documentChars = args.length > 0 ? Integer.parseInt(args[0]) : 10 << 20;
+        int versions = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        Random random = new Random(42);
+        String[] words = {"design", "pattern", "memento", "version", "document", "delta", "snapshot", "restore"};
+        StringBuilder text = new StringBuilder(documentChars + 64);
+        while (text.length() < documentChars) text.append(words[random.nextInt(words.length)]).append(' ');
+
+        Path spillFile = Files.createTempFile("versions", ".bin");
+        try (VersionControl vc = new VersionControl(64, true, spillFile, 128)) {
+            Document doc = new Document();
+            long start = System.nanoTime();
+            for (int v = 0; v < versions; v++) {
+                int at = random.nextInt(text.length() - 16);
+                text.replace(at, at + 8, words[random.nextInt(words.length)]);
+                doc.setContent(text.toString());
+                vc.saveVersion(doc);
+            }
+            double saveMillis = (System.nanoTime() - start) / 1e6 / versions;
+
+            start = System.nanoTime();
+            for (int r = 0; r < 20; r++) vc.restoreVersion(doc, random.nextInt(versions));
+            double restoreMillis = (System.nanoTime() - start) / 1e6 / 20;
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            System.out.printf("%,d versions of %,d chars: save %.2f ms, restore %.1f ms, heap %,d MB, spill file %,d MB%n",
+                    versions, documentChars, saveMillis, restoreMillis, (runtime.totalMemory() - runtime.freeMemory()) >> 20, Files.size(spillFile) >> 20);
+        } finally {
+            Files.delete(spillFile);
+        }
+    }
 }
 
 // 8. Visitor Pattern: Shape Area Calculator
@@ -228,7 +1882,11 @@ public class Main {
         // 2. Observer Pattern
         WeatherStation station = new WeatherStation();
         station.addDisplay(new CurrentConditionsDisplay());
+        WeatherHistory history = new WeatherHistory();
+        RollingWindow lastHour = history.rollingWindow(WeatherMetric.TEMPERATURE, 3_600_000);
+        station.addDisplay(history);
         station.updateWeather(25.5f, 65, 1013);
+        System.out.println("Mean temperature over the last hour: " + lastHour.mean() + "C");
 
         // 3. Command Pattern
         TV tv = new TV();